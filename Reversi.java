@@ -1,541 +1,5524 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-public class Reversi {
-    private Board board;
-    private BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
-    public PlayTreeNode rootNode;
-    public static byte myPlayerColor;
-
-    private long timeUsed;
-    private final static long LEGAL_TIME = 1000 * 60 * 2 - 20000;
-    private long lastStart;
-
-    int depth = 0;
-
-    public static ArrayList<PositionWeightPair> weights = new ArrayList<PositionWeightPair>();
-
-    private void initWeights(int width) {
-        for (int x = 0; x < width; x += width - 1) {
-            for (int y = 0; y < width; y += width - 1) {
-                weights.add(new PositionWeightPair(new Position(x, y), 20 * width / 8.0));
-            }
-        }
-
-        for (int i = 0; i < width; i += width - 1) {
-            if (i == 1 || i == width - 2) {
-                weights.add(new PositionWeightPair(new Position(i, 0), -10));
-                weights.add(new PositionWeightPair(new Position(i, width - 1), -10));
-                weights.add(new PositionWeightPair(new Position(0, i), -10));
-                weights.add(new PositionWeightPair(new Position(0, i), -10));
-            } else {
-                weights.add(new PositionWeightPair(new Position(i, 0), 5));
-                weights.add(new PositionWeightPair(new Position(i, width - 1), 5));
-                weights.add(new PositionWeightPair(new Position(0, i), 5));
-                weights.add(new PositionWeightPair(new Position(0, i), 5));
-            }
-        }
-    }
-
-    public void play(String[] args) {
-        lastStart = System.currentTimeMillis();
-        timeUsed = 0;
-        byte iPlay = Board.LIGHT;
-        int boardSize = 8;
-
-        for (int i = 0; i < args.length; i++) {
-            if (args[i].indexOf("-l") == 0) {
-                iPlay = Board.DARK;
-            } else if (args[i].indexOf("-n") == 0) {
-                boardSize = Integer.parseInt(args[i + 1]);
-            }
-        }
-
-        myPlayerColor = iPlay;
-        byte currentColor = Board.DARK;
-
-        board = new Board(boardSize);
-        initWeights(boardSize);
-        rootNode = new PlayTreeNode(new Board(board), myPlayerColor == currentColor ? PlayTreeNode.MAX_NODE : PlayTreeNode.MIN_NODE);
-
-        System.out.println("Red is dark, and blue is light. White is empty.");
-        System.out.println("You are playing as " + ((myPlayerColor == Board.DARK) ? "LIGHT (BLUE)." : "DARK (RED)."));
-
-        System.out.println(board);
-        System.out.println("Move Played: --");
-        System.out.println("Score: " + board.getScore());
-        System.out.println("\n");
-
-        while (true) {
-            byte correctType = currentColor == myPlayerColor ? PlayTreeNode.MAX_NODE : PlayTreeNode.MIN_NODE;
-            if(rootNode.nodeType != correctType)
-                rootNode = new PlayTreeNode(new Board(board), myPlayerColor == currentColor ? PlayTreeNode.MAX_NODE : PlayTreeNode.MIN_NODE);
-
-            if (!board.canMove(currentColor)) {
-                System.out.println((currentColor == Board.LIGHT ? "Light" : "Dark") + " cannot move, turn skipped.");
-                currentColor ^= 3;
-                advanceBoard(currentColor == myPlayerColor ? PlayTreeNode.MAX_NODE : PlayTreeNode.MIN_NODE);
-                if (!board.canMove(currentColor)) {
-                    System.out.println("End of game.\n");
-                    break;
-                }
-                continue;
-            }
-
-            Position chosenMove;
-            try {
-                if (currentColor != myPlayerColor) timeUsed += (System.currentTimeMillis() - lastStart);
-                chosenMove = currentColor == myPlayerColor ? chooseMove(currentColor) : getPlayerMove(currentColor);
-                if (currentColor != myPlayerColor) lastStart = System.currentTimeMillis();
-            } catch(Exception e){
-                if(currentColor == myPlayerColor){
-                    chosenMove = board.possibleMoves(currentColor).get(0);
-                }
-                else{
-                    chosenMove = getPlayerMove(currentColor);
-                }
-            }
-
-
-            board.moveOn(chosenMove, currentColor);
-
-            System.out.println(board);
-            System.out.println("Move Played: " + chosenMove);
-            System.out.println("Score: " + board.getScore());
-            System.out.println("\n");
-
-            currentColor ^= 3;
-            advanceBoard(currentColor == myPlayerColor ? PlayTreeNode.MAX_NODE : PlayTreeNode.MIN_NODE);
-        }
-
-        Score finalScore = board.getScore();
-        System.out.println("Score:\n" + finalScore);
-        System.out.println("Time used: " + timeUsed);
-        if (finalScore.dark > finalScore.light) {
-            System.out.println("Dark wins.");
-        } else if (finalScore.light > finalScore.dark) {
-            System.out.println("Light wins.");
-        } else {
-            System.out.println("Draw.");
-        }
-    }
-
-    private Position chooseMove(byte currentColor) throws IllegalStateException {
-        Score s = board.getScore();
-        int remainingMoves = board.WIDTH * board.WIDTH - (s.dark + s.light);
-
-        if(rootNode == null) rootNode = new PlayTreeNode(board, PlayTreeNode.MAX_NODE);
-
-        double estimatedTime = 0;
-        depth = Math.max(depth - 2, 4);
-        double allowedTime = 1.8 / remainingMoves * (LEGAL_TIME - timeUsed);
-        double end = lastStart + allowedTime;
-
-        while(end > System.currentTimeMillis() + estimatedTime && (s.dark + s.light + depth < board.WIDTH * board.WIDTH)){
-            depth++;
-            long start = System.currentTimeMillis();
-            rootNode.weight = -1 * Double.MAX_VALUE;
-            rootNode.alpha = -1 * Double.MAX_VALUE;
-            rootNode.beta = Double.MAX_VALUE;
-            rootNode.calcForDepth(depth, 0, -1 * Double.MAX_VALUE, Double.MAX_VALUE);
-            long taken = System.currentTimeMillis() - start;
-            estimatedTime = taken * 8 * (board.WIDTH / 8.0);
-        }
-        System.out.println("Calculated to depth " + depth);
-
-        System.out.println("Time allowed: " + allowedTime);
-        System.out.println("Time taken: " + (System.currentTimeMillis() - lastStart));
-
-        String move = null;
-        double bestWeight = -1 * Double.MAX_VALUE;
-        for(String m : rootNode.children.keySet()){
-            if(rootNode.children.get(m).weight > bestWeight){
-                move = m;
-                bestWeight = rootNode.children.get(m).weight;
-            }
-        }
-        return new Position(move);
-    }
-
-    private void advanceBoard(byte newType){
-        for(PlayTreeNode n : rootNode.children.values()){
-            if(n.board.equals(board)){
-                rootNode = n;
-                break;
-            }
-        }
-        if(!rootNode.board.equals(board)){
-            System.out.println("Could not load precomputed next step");
-            rootNode = new PlayTreeNode(new Board(board), newType);
-        }
-    }
-
-    private Position getPlayerMove(byte currentColor) {
-        Position p = null;
-        boolean valid = false;
-
-        while (!valid) {
-            p = null;
-            System.out.print("Your move: ");
-            System.out.flush();
-            try {
-                String move = stdIn.readLine();
-                p = new Position(move);
-            } catch (Exception e) {
-            }
-
-            if (p != null && board.isValidMove(p, currentColor)) valid = true;
-            else System.out.println("Sorry, that move is not valid.");
-        }
-        return p;
-    }
-
-    public static void main(String[] args) {
-        Reversi m = new Reversi();
-        m.play(args);
-    }
-}
-
-class Board {
-    public static final byte EMPTY = 0;
-    public static final byte LIGHT = 1;
-    public static final byte DARK = 2;
-    public int WIDTH;
-
-    private byte[][] spaces;
-
-    public Board(int size) {
-        WIDTH = size;
-        spaces = new byte[WIDTH][WIDTH];
-        init();
-    }
-
-    public Board(Board b) {
-        WIDTH = b.spaces.length;
-        spaces = new byte[WIDTH][WIDTH];
-        for (int i = 0; i < WIDTH; i++) {
-            System.arraycopy(b.spaces[i], 0, spaces[i], 0, WIDTH);
-        }
-    }
-
-    private void init() {
-        int center = WIDTH / 2;
-        spaces[center - 1][center - 1] = LIGHT;
-        spaces[center][center] = LIGHT;
-        spaces[center - 1][center] = DARK;
-        spaces[center][center - 1] = DARK;
-    }
-
-    private boolean checkRay(int currentX, int currentY, byte xDif, byte yDif, byte startColor) {
-        if (spaces[currentX][currentY] != EMPTY) return false;
-
-        byte otherColor = (byte) (startColor ^ 3);
-        currentX += xDif;
-        currentY += yDif;
-
-        if (currentX < 0 || currentY < 0 || currentX >= WIDTH || currentY >= WIDTH) return false;
-        if (spaces[currentX][currentY] != otherColor) return false;
-
-        do {
-            currentX += xDif;
-            currentY += yDif;
-        }
-        while (currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == otherColor);
-
-        if (currentX < 0 || currentY < 0 || currentX >= WIDTH || currentY >= WIDTH) return false;
-        if (spaces[currentX][currentY] == startColor) return true;
-        return false;
-    }
-
-    public void moveOn(Position p, byte color) {
-        moveOn(p.x, p.y, color);
-    }
-
-    public void moveOn(int moveX, int moveY, byte color) {
-        byte otherColor = (byte) (color ^ 3);
-        for (byte xDif = -1; xDif <= 1; xDif++) {
-            for (byte yDif = -1; yDif <= 1; yDif++) {
-                if (xDif == 0 && yDif == 0) continue;
-
-                if (checkRay(moveX, moveY, xDif, yDif, color)) {
-                    int currentX = moveX + xDif;
-                    int currentY = moveY + yDif;
-                    while (currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == otherColor) {
-                        spaces[currentX][currentY] = color;
-                        currentX += xDif;
-                        currentY += yDif;
-                    }
-                }
-            }
-        }
-        spaces[moveX][moveY] = color;
-    }
-
-    public ArrayList<Position> possibleMoves(byte color) {
-        ArrayList<Position> res = new ArrayList<Position>();
-        for (int x = 0; x < WIDTH; x++) {
-            for (int y = 0; y < WIDTH; y++) {
-                if (spaces[x][y] != EMPTY) continue;
-
-                boolean found = false;
-                for (byte xDif = -1; xDif <= 1 && !found; xDif++) {
-                    for (byte yDif = -1; yDif <= 1 && !found; yDif++) {
-                        if (xDif == 0 && yDif == 0) continue;
-                        if (checkRay(x, y, xDif, yDif, color)) {
-                            res.add(new Position(x, y));
-                            found = true;
-                        }
-                    }
-                }
-            }
-        }
-        return res;
-    }
-
-    public boolean isValidMove(Position p, byte color) {
-        return isValidMove(p.x, p.y, color);
-    }
-
-    public boolean isValidMove(int x, int y, byte color) {
-        if (x < 0 || y < 0 || x >= WIDTH || y >= WIDTH) return false;
-
-        for (byte xDif = -1; xDif <= 1; xDif++) {
-            for (byte yDif = -1; yDif <= 1; yDif++) {
-                if (checkRay(x, y, xDif, yDif, color)) return true;
-            }
-        }
-        return false;
-    }
-
-    public boolean canMove(byte color) {
-        for (int x = 0; x < WIDTH; x++) {
-            for (int y = 0; y < WIDTH; y++) {
-                if (spaces[x][y] != EMPTY) continue;
-
-                for (byte xDif = -1; xDif <= 1; xDif++) {
-                    for (byte yDif = -1; yDif <= 1; yDif++) {
-                        if (xDif == 0 && yDif == 0) continue;
-                        if (checkRay(x, y, xDif, yDif, color)) return true;
-                    }
-                }
-            }
-        }
-        return false;
-    }
-
-    public Score getScore() {
-        int dark = 0;
-        int light = 0;
-        for (int x = 0; x < WIDTH; x++) {
-            for (int y = 0; y < WIDTH; y++) {
-                if (spaces[x][y] == Board.DARK) dark++;
-                else if (spaces[x][y] == Board.LIGHT) light++;
-            }
-        }
-        return new Score(dark, light);
-    }
-
-    public boolean equals(Board b) {
-        for (int x = 0; x < WIDTH; x++) {
-            for (int y = 0; y < WIDTH; y++) {
-                if (spaces[x][y] != b.spaces[x][y]) return false;
-            }
-        }
-        return true;
-    }
-
-    public double getWeightFor(byte color) {
-        Score s = getScore();
-
-        if(!canMove(DARK) && !canMove(LIGHT)){
-            if(s.dark != s.light) {
-                byte winner = s.dark > s.light ? DARK : LIGHT;
-                return color == winner ? 1e4 : -1e4;
-            }
-        }
-
-        for (int x = 0; x < WIDTH; x += WIDTH - 1) {
-            for (int y = 0; y < WIDTH; y += WIDTH - 1) {
-                if(spaces[x][y] == LIGHT) s.light += 15* WIDTH / 8.0;
-                else if(spaces[x][y] == DARK) s.dark += 15 * WIDTH * WIDTH / 64.0;
-            }
-        }
-
-        for (PositionWeightPair p : Reversi.weights) {
-            if (spaces[p.pos.x][p.pos.y] == LIGHT) s.light += p.weight;
-            else if (spaces[p.pos.x][p.pos.y] == DARK) s.dark += p.weight;
-        }
-
-        s.light += possibleMoves(LIGHT).size() * 2;
-        s.dark += possibleMoves(DARK).size() * 2;
-
-        double result = color == Board.DARK ? s.dark - s.light : s.light - s.dark;
-
-        return result;
-    }
-
-    public String toString() {
-        StringBuilder s = new StringBuilder(20 * WIDTH * WIDTH);
-        char blue[] = {0x1b, '[', '4', '4', 'm', 0};
-        char red[] = {0x1b, '[', '4', '1', 'm', 0};
-        char white[] = {0x1b, '[', '4', '7', 'm', 0};
-        char underline[] = {0x1b, '[', '4', 'm', 0};
-        char noColor[] = {0x1b, '[', '4', '9', 'm', 0};
-        char noFormat[] = {0x1b, '[', '0', 'm', 0};
-        s.append(' ');
-        for (int i = -1; i < WIDTH; i++) {
-            if (i > -1) s.append((char) (i + 'a') + " ");
-            else {
-                s.append(" ");
-                s.append(underline);
-                s.append(" ");
-            }
-        }
-
-        s.append('\n');
-        for (int y = 0; y < WIDTH; y++) {
-            s.append(noFormat);
-            s.append((y + 1) + ((y + 1) < 10 ? " " : ""));
-            s.append(underline);
-            s.append('|');
-            for (int x = 0; x < WIDTH; x++) {
-                switch (spaces[x][y]) {
-                    case EMPTY:
-                        s.append(white);
-                        break;
-                    case DARK:
-                        s.append(red);
-                        break;
-                    case LIGHT:
-                        s.append(blue);
-                        break;
-                }
-                s.append(' ');
-                s.append(noColor);
-                s.append('|');
-            }
-            if (y != WIDTH - 1) s.append('\n');
-        }
-        s.append(noFormat);
-        return s.toString();
-    }
-}
-
-class PlayTreeNode {
-    public static final byte MIN_NODE = 4;
-    public static final byte MAX_NODE = 8;
-
-    public Board board;
-    public double weight;
-    public byte nodeType;
-
-    public double alpha;
-    public double beta;
-
-    Hashtable<String, PlayTreeNode> children;
-
-    public PlayTreeNode(Board b, byte t) {
-        board = b;
-        nodeType = t;
-        weight = b.getWeightFor(Reversi.myPlayerColor);
-        children = new Hashtable<String, PlayTreeNode>();
-        alpha = -1 * Double.MAX_VALUE;
-        beta = Double.MAX_VALUE;
-    }
-
-    public void calcForDepth(int depth, int current, double parentAlpha, double parentBeta){
-        if(current >= depth) return;
-
-        alpha = parentAlpha;
-        beta = parentBeta;
-
-        byte moveColor = (byte)(nodeType == MAX_NODE ? Reversi.myPlayerColor : Reversi.myPlayerColor ^ 3);
-
-        for(Position p : board.possibleMoves(moveColor)){
-            if(alpha >= beta) return;
-            PlayTreeNode child = children.get(p.toString());
-
-            if(child == null) {
-                Board newBoard = new Board(board);
-                newBoard.moveOn(p, moveColor);
-                child = new PlayTreeNode(newBoard, nodeType == MAX_NODE ? MIN_NODE : MAX_NODE);
-            }
-            else{
-                child.weight = child.board.getWeightFor(Reversi.myPlayerColor);
-                child.alpha = -1 * Double.MAX_VALUE;
-                child.beta = Double.MAX_VALUE;
-            }
-
-            child.calcForDepth(depth, current + 1, alpha, beta);
-
-            if(nodeType == MAX_NODE){
-                if(child.weight > weight) weight = child.weight;
-                if(child.weight > alpha) alpha = child.weight;
-            }
-            else{
-                if(child.weight < weight) weight = child.weight;
-                if(child.weight < beta) beta = child.weight;
-            }
-            children.put(p.toString(), child);
-        }
-    }
-}
-
-class Position {
-    public int x;
-    public int y;
-
-    public Position(int a, int b) {
-        x = a;
-        y = b;
-    }
-
-    public Position(Position p) {
-        x = p.x;
-        y = p.y;
-    }
-
-    public Position(String move) {
-        x = move.charAt(0) - 'a';
-        y = Integer.parseInt(move.substring(1)) - 1;
-    }
-
-    public String toString() {
-        return (char) (x + 'a') + "" + (y + 1);
-    }
-}
-
-class Score {
-    public int dark;
-    public int light;
-
-    public Score(int d, int l) {
-        dark = d;
-        light = l;
-    }
-
-    public Score(Score s) {
-        dark = s.dark;
-        light = s.light;
-    }
-
-    public String toString() {
-        return "Light " + light + " - Dark " + dark;
-    }
-}
-
-class PositionWeightPair {
-    public Position pos;
-    public double weight;
-
-    public PositionWeightPair(Position p, double w) {
-        pos = p;
-        weight = w;
-    }
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Reversi {
+    private Board board;
+    private final BufferedReader stdIn;
+    private final PrintStream out;
+    // The host's search pool when this is one of a GameHost's games, otherwise null.
+    private final ExecutorService cpu;
+    public PlayTree tree;
+    private byte myPlayerColor;
+    private TranspositionTable table;
+    private ProbCut probCut;
+    // Whether searches order moves beyond the hash move (-order off to compare node counts).
+    private boolean ordered = true;
+
+    private static final String[] SEARCH_MODES = {"tree", "negamax", "parallel", "smp"};
+    // How often advanceBoard found the new position among the tree's children.
+    private int reuseHits;
+    private int reuseMisses;
+
+    private long timeUsed;
+    private TimeManager clock;
+    private Ponderer ponderer;
+    private OpeningBook book;
+    private final static long LEGAL_TIME = 1000 * 60 * 2 - 20000;
+    // Half width of the first aspiration window, in getWeightFor units.
+    private final static int ASPIRATION_WINDOW = 16;
+    private long lastStart;
+
+    public static final byte TREE_SEARCH = 0;
+    public static final byte NEGAMAX_SEARCH = 1;
+    public static final byte PARALLEL_SEARCH = 2;
+    public static final byte SMP_SEARCH = 3;
+
+    int depth = 0;
+    private byte boardEngine = Board.ARRAY_ENGINE;
+    private byte searchMode = TREE_SEARCH;
+    private Searcher searcher;
+    private EndgameSolver endgame;
+    private int endgameEmpties = 12;
+    private int treeMegabytes = 64;
+    private boolean winLossDraw = false;
+
+    public Reversi() {
+        this(new BufferedReader(new InputStreamReader(System.in)), System.out, null);
+    }
+
+    Reversi(BufferedReader in, PrintStream out, ExecutorService cpu) {
+        stdIn = in;
+        this.out = out;
+        this.cpu = cpu;
+    }
+
+    // The positional weights getWeightFor uses on a board of width.
+    static ArrayList<PositionWeightPair> weights(int width) {
+        ArrayList<PositionWeightPair> weights = new ArrayList<PositionWeightPair>();
+        for (int x = 0; x < width; x += width - 1) {
+            for (int y = 0; y < width; y += width - 1) {
+                weights.add(new PositionWeightPair(new Position(x, y), 20 * width / 8.0));
+            }
+        }
+
+        // Every square of every edge: C squares next to the corners lose, the rest gain.
+        for (int i = 0; i < width; i++) {
+            double w = i == 1 || i == width - 2 ? -10 : 5;
+            weights.add(new PositionWeightPair(new Position(i, 0), w));
+            weights.add(new PositionWeightPair(new Position(i, width - 1), w));
+            weights.add(new PositionWeightPair(new Position(0, i), w));
+            weights.add(new PositionWeightPair(new Position(width - 1, i), w));
+        }
+        return weights;
+    }
+
+    public void play(String[] args) {
+        lastStart = System.currentTimeMillis();
+        timeUsed = 0;
+        byte iPlay = Board.LIGHT;
+        int boardSize = 8;
+        int hashMegabytes = 64;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int speedupThreads = 0;
+        int fixedDepth = 8;
+        int perftDepth = 0;
+        boolean ponder = false;
+        // Whether to evaluate with the hand-set pattern tables when there are no trained ones.
+        boolean seedPatterns = false;
+        String bookFile = null;
+        int bookPlies = 0;
+        int bookDepth = 0;
+        String selfPlayFile = null;
+        int selfPlayGames = 0;
+        String trainFile = null;
+        int trainEpochs = 0;
+        int matchGames = 0;
+        double probCutThreshold = 1.5;
+        int calibratePositions = 0;
+        int calibrateDepth = 0;
+        String[] matchEngines = null;
+        String serveAddress = null;
+        String hostAddress = null;
+        String startMoves = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].indexOf("-l") == 0) {
+                iPlay = Board.DARK;
+            } else if (args[i].indexOf("-n") == 0) {
+                boardSize = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-b") == 0) {
+                boardEngine = Board.parseEngine(args[i + 1]);
+            } else if (args[i].indexOf("-host") == 0) {
+                hostAddress = args[i + 1];
+            } else if (args[i].indexOf("-hash") == 0) {
+                hashMegabytes = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-treemem") == 0) {
+                treeMegabytes = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-threads") == 0) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-depth") == 0) {
+                fixedDepth = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-endgame") == 0) {
+                endgameEmpties = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-wld") == 0) {
+                winLossDraw = true;
+            } else if (args[i].indexOf("-order") == 0) {
+                ordered = !args[i + 1].equals("off");
+            } else if (args[i].indexOf("-patterns") == 0) {
+                seedPatterns = true;
+            } else if (args[i].indexOf("-perft") == 0) {
+                perftDepth = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-match") == 0) {
+                matchGames = Integer.parseInt(args[i + 1]);
+                matchEngines = new String[] {args[i + 2], args[i + 3]};
+            } else if (args[i].indexOf("-mpc") == 0) {
+                probCutThreshold = Double.parseDouble(args[i + 1]);
+            } else if (args[i].indexOf("-calibrate") == 0) {
+                calibratePositions = Integer.parseInt(args[i + 1]);
+                calibrateDepth = Integer.parseInt(args[i + 2]);
+            } else if (args[i].indexOf("-makebook") == 0) {
+                bookPlies = Integer.parseInt(args[i + 1]);
+                bookDepth = Integer.parseInt(args[i + 2]);
+            } else if (args[i].indexOf("-openings") == 0) {
+                bookFile = args[i + 1];
+            } else if (args[i].indexOf("-ponder") == 0) {
+                ponder = true;
+            } else if (args[i].indexOf("-position") == 0) {
+                startMoves = args[i + 1];
+            } else if (args[i].indexOf("-speedup") == 0) {
+                speedupThreads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].indexOf("-serve") == 0) {
+                serveAddress = args[i + 1];
+            } else if (args[i].indexOf("-selfplay") == 0) {
+                selfPlayGames = Integer.parseInt(args[i + 1]);
+                selfPlayFile = args[i + 2];
+            } else if (args[i].indexOf("-train") == 0) {
+                trainFile = args[i + 1];
+                trainEpochs = Integer.parseInt(args[i + 2]);
+            } else if (args[i].indexOf("-s") == 0) {
+                searchMode = parseSearchMode(args[i + 1]);
+            }
+        }
+
+        if (speedupThreads > 0) {
+            ParallelSearch.speedupReport(boardSize, boardEngine, fixedDepth, speedupThreads, ordered);
+            return;
+        }
+        if (perftDepth > 0) {
+            try {
+                Perft.report(boardSize, startMoves, perftDepth, threads);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (bookPlies > 0) {
+            try {
+                OpeningBook.build(boardSize, boardEngine, bookPlies, bookDepth, bookFile != null ? bookFile : OpeningBook.fileName(boardSize));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (calibratePositions > 0) {
+            try {
+                ProbCut.calibrate(boardSize, boardEngine, calibratePositions, calibrateDepth, threads);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (matchGames > 0) {
+            try {
+                MatchRunner.run(boardSize, boardEngine, matchGames, matchEngines[0], matchEngines[1], threads);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (serveAddress != null) {
+            try {
+                new AnalysisServer(boardEngine, hashMegabytes, fixedDepth, endgameEmpties, probCutThreshold, ordered, threads).listen(serveAddress);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (hostAddress != null) {
+            try {
+                new GameHost(args, threads).listen(hostAddress);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (selfPlayGames > 0 || trainFile != null) {
+            try {
+                if (selfPlayGames > 0) SelfPlay.generate(boardSize, boardEngine, selfPlayGames, fixedDepth, threads, selfPlayFile);
+                if (trainFile != null) Trainer.train(boardSize, trainFile, trainEpochs, threads);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (cpu != null && (searchMode == PARALLEL_SEARCH || searchMode == SMP_SEARCH || ponder)) {
+            throw new IllegalArgumentException("Games in a host search one at a time on its pool: no parallel, smp or -ponder");
+        }
+
+        myPlayerColor = iPlay;
+        byte currentColor = Board.DARK;
+
+        board = Board.create(boardSize, boardEngine);
+        if (seedPatterns && board.patterns == null) board.usePatterns(PatternEvaluator.seededForWidth(boardSize));
+        table = hashMegabytes > 0 ? new TranspositionTable(hashMegabytes) : null;
+        try {
+            probCut = probCutThreshold > 0 ? ProbCut.load(boardSize, probCutThreshold) : null;
+            if (probCut != null) out.println("Multi-ProbCut fits loaded");
+        } catch (IOException e) {
+            out.println("Multi-ProbCut fits not loaded: " + e.getMessage());
+        }
+        endgame = new EndgameSolver(boardSize);
+        clock = new TimeManager(LEGAL_TIME, endgameEmpties);
+        if (ponder) ponderer = new Ponderer(boardSize, table, probCut, ordered);
+        try {
+            book = OpeningBook.open(bookFile != null ? bookFile : OpeningBook.fileName(boardSize), boardSize);
+            if (book != null) out.println("Opening book: " + book.size() + " positions");
+        } catch (IOException e) {
+            out.println("Opening book not loaded: " + e.getMessage());
+        }
+        if (searchMode == TREE_SEARCH) {
+            tree = newTree(myPlayerColor == currentColor ? PlayTree.MAX_NODE : PlayTree.MIN_NODE);
+        } else if (searchMode == PARALLEL_SEARCH) {
+            searcher = new ParallelSearch(boardSize, table, threads);
+        } else if (searchMode == SMP_SEARCH) {
+            searcher = new LazySmpSearch(boardSize, table, threads);
+        } else {
+            searcher = new NegamaxSearch(boardSize, table);
+        }
+        if (searcher != null) {
+            searcher.setProbCut(probCut);
+            searcher.setOrdering(ordered);
+        }
+
+        out.println("Red is dark, and blue is light. White is empty.");
+        out.println("You are playing as " + ((myPlayerColor == Board.DARK) ? "LIGHT (BLUE)." : "DARK (RED)."));
+
+        out.println(board);
+        out.println("Move Played: --");
+        out.println("Score: " + board.getScore());
+        out.println("\n");
+
+        while (true) {
+            byte correctType = currentColor == myPlayerColor ? PlayTree.MAX_NODE : PlayTree.MIN_NODE;
+            if(tree != null && tree.rootType() != correctType) tree.clear(board, correctType);
+
+            if (!board.canMove(currentColor)) {
+                out.println((currentColor == Board.LIGHT ? "Light" : "Dark") + " cannot move, turn skipped.");
+                currentColor ^= 3;
+                advanceBoard(currentColor == myPlayerColor ? PlayTree.MAX_NODE : PlayTree.MIN_NODE);
+                if (!board.canMove(currentColor)) {
+                    out.println("End of game.\n");
+                    break;
+                }
+                continue;
+            }
+
+            Position chosenMove;
+            try {
+                if (currentColor != myPlayerColor) {
+                    timeUsed += (System.currentTimeMillis() - lastStart);
+                    startPondering(currentColor);
+                }
+                chosenMove = currentColor == myPlayerColor ? think(currentColor) : getPlayerMove(currentColor);
+                if (currentColor != myPlayerColor) {
+                    lastStart = System.currentTimeMillis();
+                    if (ponderer != null) out.println("Pondered to depth " + ponderer.stop());
+                }
+            } catch(Exception e){
+                if(currentColor == myPlayerColor){
+                    chosenMove = board.possibleMoves(currentColor).get(0);
+                }
+                else{
+                    chosenMove = getPlayerMove(currentColor);
+                }
+            }
+
+
+            board.moveOn(chosenMove, currentColor);
+
+            out.println(board);
+            out.println("Move Played: " + chosenMove);
+            out.println("Score: " + board.getScore());
+            out.println("\n");
+
+            currentColor ^= 3;
+            advanceBoard(currentColor == myPlayerColor ? PlayTree.MAX_NODE : PlayTree.MIN_NODE);
+        }
+
+        Score finalScore = board.getScore();
+        out.println("Score:\n" + finalScore);
+        out.println("Time used: " + timeUsed);
+        if (finalScore.dark > finalScore.light) {
+            out.println("Dark wins.");
+        } else if (finalScore.light > finalScore.dark) {
+            out.println("Light wins.");
+        } else {
+            out.println("Draw.");
+        }
+    }
+
+    private static byte parseSearchMode(String name) {
+        for (byte mode = 0; mode < SEARCH_MODES.length; mode++) {
+            if (SEARCH_MODES[mode].equals(name)) return mode;
+        }
+        throw new IllegalArgumentException("Unknown search mode: " + name);
+    }
+
+    private SearchStats searchStats() {
+        return searcher != null ? searcher.stats() : tree.stats();
+    }
+
+    private PlayTree newTree(byte type) {
+        return new PlayTree(board, type, myPlayerColor, table, probCut, ordered, (long) treeMegabytes << 20);
+    }
+
+    // chooseMove, on the host's search pool when there is one so that only so many games search at once.
+    private Position think(byte currentColor) throws Exception {
+        if (cpu == null) return chooseMove(currentColor);
+        return cpu.submit(() -> chooseMove(currentColor)).get();
+    }
+
+    private Position chooseMove(byte currentColor) throws IllegalStateException {
+        Score s = board.getScore();
+        int remainingMoves = board.WIDTH * board.WIDTH - (s.dark + s.light);
+
+        int moveNumber = s.dark + s.light - 3;
+
+        if(remainingMoves <= endgameEmpties){
+            long nodes = endgame.nodes;
+            long cutoffs = endgame.stabilityCutoffs;
+            long start = System.currentTimeMillis();
+            int result = endgame.solve(board.copy(), currentColor, winLossDraw);
+            long taken = System.currentTimeMillis() - start;
+            out.println("Endgame solved: " + (winLossDraw ? (result > 0 ? "win" : result < 0 ? "loss" : "draw") : "disc differential " + result));
+            out.println("Time taken: " + (System.currentTimeMillis() - lastStart));
+            System.err.println(new MoveStats(moveNumber, currentColor, "endgame")
+                    .put("empties", remainingMoves).put("result", result).put("ms", taken)
+                    .put("nodes", endgame.nodes - nodes).put("nps", (endgame.nodes - nodes) * 1000 / Math.max(1, taken))
+                    .put("stabilityCutoffs", endgame.stabilityCutoffs - cutoffs));
+            return endgame.bestMove();
+        }
+
+        ArrayList<Position> legalMoves = board.possibleMoves(currentColor);
+        if(legalMoves.size() == 1){
+            out.println("Only one legal move");
+            System.err.println(new MoveStats(moveNumber, currentColor, "single").put("ms", System.currentTimeMillis() - lastStart));
+            return legalMoves.get(0);
+        }
+
+        Position bookMove = book != null ? book.lookup(board, currentColor) : null;
+        if(bookMove != null){
+            out.println("Book move");
+            System.err.println(new MoveStats(moveNumber, currentColor, "book").put("ms", System.currentTimeMillis() - lastStart));
+            return bookMove;
+        }
+
+        if(searchMode == TREE_SEARCH && tree == null) tree = newTree(PlayTree.MAX_NODE);
+        if(table != null) table.newSearch();
+        MoveOrdering moveOrdering = searcher == null ? tree.ordering() : searcher.ordering();
+        if(moveOrdering != null) moveOrdering.newSearch();
+        MoveStats report = new MoveStats(moveNumber, currentColor, SEARCH_MODES[searchMode]);
+        SearchStats before = searchStats();
+        long searchStart = System.currentTimeMillis();
+        Board searchBoard = searchMode == TREE_SEARCH ? null : board.copy();
+        if(searcher != null) searcher.startMove(searchBoard, currentColor, Math.max(depth - 2, 4));
+        // The helper threads of a lazy SMP search must not outlive the move, however it ends.
+        try{
+            clock.startMove(lastStart, timeUsed, remainingMoves);
+            if(searcher != null) searcher.setDeadline(clock.deadline());
+            if(tree != null) tree.setDeadline(clock.deadline());
+
+            depth = Math.max(depth - 2, 4);
+            int completed = 0;
+            Position best = null;
+            String principalVariation = "";
+            boolean aborted = false;
+            int score = 0;
+            int researches = 0;
+            // A proven win or loss will not change with more depth.
+            while(Math.abs(score) < Board.WIN_SCORE && s.dark + s.light + depth < board.WIDTH * board.WIDTH
+                    && clock.startIteration(System.currentTimeMillis())){
+                depth++;
+                long start = System.currentTimeMillis();
+                long startNodes = searchStats().nodes;
+                try{
+                    // Aspiration window around the previous iteration's score, widened until the score falls inside it.
+                    int delta = ASPIRATION_WINDOW;
+                    int alpha = best != null ? score - delta : -Searcher.INFINITY;
+                    int beta = best != null ? score + delta : Searcher.INFINITY;
+                    while(true){
+                        if(searchMode == TREE_SEARCH){
+                            score = tree.search(depth, alpha, beta);
+                        }
+                        else{
+                            score = searcher.search(searchBoard, currentColor, depth, alpha, beta);
+                        }
+                        delta *= 2;
+                        if(score <= alpha && alpha > -Searcher.INFINITY) alpha = Math.max(score - delta, -Searcher.INFINITY);
+                        else if(score >= beta && beta < Searcher.INFINITY) beta = Math.min(score + delta, Searcher.INFINITY);
+                        else break;
+                        researches++;
+                    }
+                }
+                catch(SearchAborted e){
+                    // Out of time part way through: keep the last completed iteration and throw away the board it left behind.
+                    aborted = true;
+                    depth--;
+                    if(searchBoard != null) searchBoard = board.copy();
+                    break;
+                }
+                long taken = System.currentTimeMillis() - start;
+                long nodes = searchStats().nodes - startNodes;
+                report.iteration(depth, nodes, taken);
+                best = searcher != null ? searcher.bestMove() : tree.bestChild();
+                if(searcher != null) principalVariation = searcher.principalVariation();
+                clock.iterationDone(nodes, taken, best);
+                completed++;
+            }
+            if(searcher != null) searcher.setDeadline(Long.MAX_VALUE);
+            if(tree != null) tree.setDeadline(Long.MAX_VALUE);
+            out.println("Calculated to depth " + depth + " with " + researches + " aspiration re-searches" + (aborted ? ", stopped at the deadline" : ""));
+
+            out.println("Time allowed: " + clock.softTime());
+            out.println("Time taken: " + (System.currentTimeMillis() - lastStart));
+
+            report.put("depth", depth).put("allowedMs", clock.softTime()).put("deadlineMs", clock.deadline() - lastStart)
+                    .put("aborted", aborted ? 1 : 0).put("ebf", clock.ebf()).put("researches", researches)
+                    .put("reuseHits", reuseHits).put("reuseMisses", reuseMisses);
+            if(tree != null){
+                out.println("Search tree: " + tree.size() + " of " + tree.capacity() + " nodes, " + tree.evictions() + " evicted");
+                report.put("treeNodes", tree.size()).put("treeCapacity", tree.capacity()).put("treeEvictions", tree.evictions());
+            }
+            if(searcher != null){
+                if(best == null){
+                    // Nothing finished in time; anything legal beats losing on time.
+                    searcher.search(searchBoard, currentColor, 1);
+                    best = searcher.bestMove();
+                    principalVariation = searcher.principalVariation();
+                }
+                searcher.endMove();
+                out.println("Principal variation: " + principalVariation);
+                reportSearch(report, before, searchStart);
+                return best;
+            }
+            reportSearch(report, before, searchStart);
+            if(best == null) best = tree.bestChild();
+            return best != null ? best : legalMoves.get(0);
+        }
+        finally{
+            if(searcher != null) searcher.endMove();
+        }
+    }
+
+    // Thinks about the position in front of the opponent until their move arrives. Not charged to timeUsed.
+    private void startPondering(byte opponent){
+        if(ponderer == null) return;
+        int empties = board.WIDTH * board.WIDTH - board.countDiscs(Board.DARK) - board.countDiscs(Board.LIGHT);
+        if(empties <= endgameEmpties) return;
+        int startDepth = Math.min(Math.max(depth - 2, 4), empties);
+        // The tree evicts to stay inside its budget, so it can ponder as deep as the negamax searches do.
+        if(tree != null) ponderer.start(tree, startDepth, empties);
+        else ponderer.start(board.copy(), opponent, startDepth, empties);
+    }
+
+    private void reportSearch(MoveStats report, SearchStats before, long start){
+        long taken = System.currentTimeMillis() - start;
+        SearchStats stats = searchStats();
+        stats.subtract(before);
+        System.err.println(report.put("ms", taken).search(stats, taken));
+    }
+
+    private void advanceBoard(byte newType){
+        if(tree == null) return;
+        if(!tree.advance(board, newType)){
+            out.println("Could not load precomputed next step");
+            reuseMisses++;
+        }
+        else{
+            reuseHits++;
+        }
+    }
+
+    private Position getPlayerMove(byte currentColor) {
+        Position p = null;
+        boolean valid = false;
+
+        while (!valid) {
+            p = null;
+            out.print("Your move: ");
+            out.flush();
+            String move;
+            try {
+                move = stdIn.readLine();
+            } catch (IOException e) {
+                move = null;
+            }
+            // Nothing more will come, so asking again would only spin.
+            if (move == null) throw new IllegalStateException("Input closed while waiting for a move");
+            try {
+                p = new Position(move);
+            } catch (Exception e) {
+            }
+
+            if (p != null && board.isValidMove(p, currentColor)) valid = true;
+            else out.println("Sorry, that move is not valid.");
+        }
+        return p;
+    }
+
+    public static void main(String[] args) {
+        Reversi m = new Reversi();
+        m.play(args);
+    }
+}
+
+abstract class Board {
+    public static final byte EMPTY = 0;
+    public static final byte LIGHT = 1;
+    public static final byte DARK = 2;
+
+    public static final byte ARRAY_ENGINE = 0;
+    public static final byte BIT_ENGINE = 1;
+    public static final byte PACKED_ENGINE = 2;
+    public static final byte AUTO_ENGINE = 3;
+
+    public int WIDTH;
+
+    // Zobrist key of the discs on the board, kept up to date by moveOn.
+    public long hash;
+
+    // getWeightFor's score for a finished game, above anything the heuristic can reach.
+    public static final int WIN_SCORE = 10000;
+    // What getWeightFor adds for each stable disc, on top of the disc itself, where it counts them.
+    private static final int STABLE_WEIGHT = 2;
+
+    // Disc counts and positional sums for getWeightFor, kept up to date by moveOn and makeMove.
+    protected int lightDiscs;
+    protected int darkDiscs;
+    protected int lightSum;
+    protected int darkSum;
+    protected int[] lightWeights;
+    protected int[] darkWeights;
+    private int[] evalStack;
+    // Whether the weight tables look the same under every symmetry, so reflected positions score alike.
+    protected boolean symmetricEvaluation;
+
+    // The pattern evaluator, if any, and the code of each of its instances.
+    protected PatternEvaluator patterns;
+    protected int[] patternCodes;
+    private int[] patternStack;
+
+    // Scratch space for stableDiscs.
+    private boolean[] stable;
+    private boolean[][] fullLines;
+
+    // Transform the last symmetryKey was taken under, to turn moves to and from the canonical orientation.
+    public int symmetry;
+
+    public static Board create(int size, byte engine) {
+        if (engine == AUTO_ENGINE) engine = size == BitBoard.SIZE ? BIT_ENGINE : PACKED_ENGINE;
+        if (engine == BIT_ENGINE && size == BitBoard.SIZE) return new BitBoard();
+        if (engine != ARRAY_ENGINE && size <= PackedBoard.MAX_SIZE) return new PackedBoard(size);
+        return new ArrayBoard(size);
+    }
+
+    public static byte parseEngine(String name) {
+        if (name.equals("bit")) return BIT_ENGINE;
+        if (name.equals("array")) return ARRAY_ENGINE;
+        if (name.equals("packed")) return PACKED_ENGINE;
+        if (name.equals("auto")) return AUTO_ENGINE;
+        throw new IllegalArgumentException("Unknown board engine: " + name);
+    }
+
+    public abstract Board copy();
+
+    public abstract byte get(int x, int y);
+
+    public void moveOn(Position p, byte color) {
+        moveOn(p.x, p.y, color);
+    }
+
+    public abstract void moveOn(int moveX, int moveY, byte color);
+
+    public abstract ArrayList<Position> possibleMoves(byte color);
+
+    public boolean isValidMove(Position p, byte color) {
+        return isValidMove(p.x, p.y, color);
+    }
+
+    public abstract boolean isValidMove(int x, int y, byte color);
+
+    public abstract boolean canMove(byte color);
+
+    public Score getScore() {
+        return new Score(darkDiscs, lightDiscs);
+    }
+
+    /**
+     * Writes the legal moves for color into moves as squares x * WIDTH + y and
+     * returns how many there are.
+     */
+    public abstract int generateMoves(byte color, int[] moves);
+
+    public abstract int countMoves(byte color);
+
+    public int countDiscs(byte color) {
+        return color == LIGHT ? lightDiscs : darkDiscs;
+    }
+
+    /**
+     * Plays a square from generateMoves, remembering enough to take it back with
+     * undoMove. Neither call allocates once the undo stack exists.
+     */
+    public abstract void makeMove(int square, byte color);
+
+    public abstract void undoMove();
+
+    /**
+     * Number of discs color would turn over by playing square, 0 if the square
+     * is taken or the move is not legal.
+     */
+    public abstract int countFlips(int square, byte color);
+
+    /**
+     * Number of color's discs that can never be turned over. A disc counts if
+     * along each of the four lines through it either the whole line is full,
+     * or the next square one way is off the board or holds another counted
+     * disc. That misses a few stable discs, and all of them while color holds
+     * no corner, so the count is a lower bound.
+     */
+    public int stableDiscs(byte color) {
+        int w = WIDTH;
+        if (get(0, 0) != color && get(0, w - 1) != color && get(w - 1, 0) != color && get(w - 1, w - 1) != color) return 0;
+        if (stable == null) {
+            stable = new boolean[w * w];
+            fullLines = new boolean[4][2 * w - 1];
+        }
+        // Full lines: rows by x, columns by y, diagonals by x - y + w - 1 and x + y.
+        for (boolean[] lines : fullLines) Arrays.fill(lines, true);
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < w; y++) {
+                if (get(x, y) != EMPTY) continue;
+                fullLines[0][x] = false;
+                fullLines[1][y] = false;
+                fullLines[2][x - y + w - 1] = false;
+                fullLines[3][x + y] = false;
+            }
+        }
+
+        Arrays.fill(stable, false);
+        int count = 0;
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int x = 0; x < w; x++) {
+                for (int y = 0; y < w; y++) {
+                    if (stable[x * w + y] || get(x, y) != color) continue;
+                    if ((fullLines[0][x] || anchored(x, y, 0, 1))
+                            && (fullLines[1][y] || anchored(x, y, 1, 0))
+                            && (fullLines[2][x - y + w - 1] || anchored(x, y, 1, 1))
+                            && (fullLines[3][x + y] || anchored(x, y, 1, -1))) {
+                        stable[x * w + y] = true;
+                        count++;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Whether the square either way along (dx, dy) from (x, y) is off the board or already counted stable.
+    private boolean anchored(int x, int y, int dx, int dy) {
+        return !onBoard(x + dx, y + dy) || stable[(x + dx) * WIDTH + y + dy]
+                || !onBoard(x - dx, y - dy) || stable[(x - dx) * WIDTH + y - dy];
+    }
+
+    private boolean onBoard(int x, int y) {
+        return x >= 0 && y >= 0 && x < WIDTH && y < WIDTH;
+    }
+
+    // Evaluates with p from now on, or without patterns if p is null or for another width.
+    public void usePatterns(PatternEvaluator p) {
+        patterns = p != null && p.width == WIDTH ? p : null;
+        patternCodes = patterns != null ? patterns.codes(this) : null;
+        patternStack = null;
+    }
+
+    // Zobrist key of the board as seen through Symmetry transform t.
+    public long symmetricHash(int t) {
+        return t == 0 ? hash : Symmetry.hash(this, t);
+    }
+
+    /**
+     * Transposition table key for color to move, searched depth more plies.
+     * While few discs are down and the evaluation is symmetric it is the
+     * canonical key over the eight symmetries, with symmetry set to the
+     * transform it was taken under; otherwise it is the plain Zobrist key and
+     * symmetry is 0. The two can be mixed freely: a canonical key is the plain
+     * key of the reflection it was taken from, and moves are stored in that
+     * reflection's orientation.
+     */
+    public long symmetryKey(byte color, int depth) {
+        symmetry = 0;
+        if (!symmetricEvaluation || depth < Symmetry.MIN_DEPTH || lightDiscs + darkDiscs > Symmetry.MAX_DISCS) {
+            return hash ^ Zobrist.side(color);
+        }
+        long min = hash;
+        for (int t = 1; t < Symmetry.COUNT; t++) {
+            long h = symmetricHash(t);
+            if (h < min) {
+                min = h;
+                symmetry = t;
+            }
+        }
+        return min ^ Zobrist.side(color);
+    }
+
+    public boolean equals(Board b) {
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (get(x, y) != b.get(x, y)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the per-square weight tables from the corner bonus and
+     * Reversi.weights, then counts the discs on the board.
+     * Every term getWeightFor adds for a square is a whole number or a
+     * positive bonus added to a non-negative count, where the int conversion
+     * truncates, so summing the truncated values gives exactly the same totals.
+     * The patterns come from PatternEvaluator.forWidth, so there are none
+     * unless trained tables are there.
+     */
+    protected void initEvaluation() {
+        lightWeights = new int[WIDTH * WIDTH];
+        darkWeights = new int[WIDTH * WIDTH];
+        for (int x = 0; x < WIDTH; x += WIDTH - 1) {
+            for (int y = 0; y < WIDTH; y += WIDTH - 1) {
+                lightWeights[x * WIDTH + y] += (int) (15 * WIDTH / 8.0);
+                darkWeights[x * WIDTH + y] += (int) (15 * WIDTH * WIDTH / 64.0);
+            }
+        }
+        ArrayList<PositionWeightPair> weights = Reversi.weights(WIDTH);
+        for (int i = 0; i < weights.size(); i++) {
+            PositionWeightPair p = weights.get(i);
+            lightWeights[p.pos.x * WIDTH + p.pos.y] += (int) p.weight;
+            darkWeights[p.pos.x * WIDTH + p.pos.y] += (int) p.weight;
+        }
+        symmetricEvaluation = Symmetry.invariant(lightWeights, WIDTH) && Symmetry.invariant(darkWeights, WIDTH);
+
+        patterns = PatternEvaluator.forWidth(WIDTH);
+        patternCodes = patterns != null ? new int[patterns.instances()] : null;
+
+        lightDiscs = darkDiscs = lightSum = darkSum = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                byte c = get(x, y);
+                if (c != EMPTY) placed(x * WIDTH + y, c);
+            }
+        }
+    }
+
+    protected void copyEvaluation(Board b) {
+        lightWeights = b.lightWeights;
+        darkWeights = b.darkWeights;
+        symmetricEvaluation = b.symmetricEvaluation;
+        lightDiscs = b.lightDiscs;
+        darkDiscs = b.darkDiscs;
+        lightSum = b.lightSum;
+        darkSum = b.darkSum;
+        patterns = b.patterns;
+        patternCodes = b.patternCodes != null ? b.patternCodes.clone() : null;
+    }
+
+    protected final void placed(int square, byte color) {
+        if (color == LIGHT) {
+            lightDiscs++;
+            lightSum += lightWeights[square];
+        } else {
+            darkDiscs++;
+            darkSum += darkWeights[square];
+        }
+        if (patterns != null) patterns.placed(patternCodes, square, color);
+    }
+
+    // The disc on square has just turned to color.
+    protected final void flipped(int square, byte color) {
+        if (color == LIGHT) {
+            lightDiscs++;
+            darkDiscs--;
+            lightSum += lightWeights[square];
+            darkSum -= darkWeights[square];
+        } else {
+            darkDiscs++;
+            lightDiscs--;
+            darkSum += darkWeights[square];
+            lightSum -= lightWeights[square];
+        }
+        if (patterns != null) patterns.flipped(patternCodes, square, color);
+    }
+
+    protected final void saveEvaluation(int ply) {
+        if (evalStack == null) evalStack = new int[WIDTH * WIDTH * 4];
+        evalStack[ply * 4] = lightDiscs;
+        evalStack[ply * 4 + 1] = darkDiscs;
+        evalStack[ply * 4 + 2] = lightSum;
+        evalStack[ply * 4 + 3] = darkSum;
+        if (patterns != null) {
+            int n = patternCodes.length;
+            if (patternStack == null) patternStack = new int[WIDTH * WIDTH * n];
+            System.arraycopy(patternCodes, 0, patternStack, ply * n, n);
+        }
+    }
+
+    protected final void restoreEvaluation(int ply) {
+        lightDiscs = evalStack[ply * 4];
+        darkDiscs = evalStack[ply * 4 + 1];
+        lightSum = evalStack[ply * 4 + 2];
+        darkSum = evalStack[ply * 4 + 3];
+        if (patterns != null) System.arraycopy(patternStack, ply * patternCodes.length, patternCodes, 0, patternCodes.length);
+    }
+
+    /**
+     * Whether getWeightFor counts stable discs. Only BitBoard does, where
+     * stableDiscs is a few mask operations; here it scans the whole board,
+     * which every evaluation cannot afford. The endgame solver's cutoffs still
+     * use it.
+     */
+    protected boolean countsStability() {
+        return false;
+    }
+
+    public int getWeightFor(byte color) {
+        int lightMoves = countMoves(LIGHT);
+        int darkMoves = countMoves(DARK);
+
+        if(lightMoves == 0 && darkMoves == 0){
+            if(darkDiscs != lightDiscs) {
+                byte winner = darkDiscs > lightDiscs ? DARK : LIGHT;
+                return color == winner ? WIN_SCORE : -WIN_SCORE;
+            }
+        }
+
+        int light = lightDiscs + lightSum + lightMoves * 2;
+        int dark = darkDiscs + darkSum + darkMoves * 2;
+        if (countsStability()) {
+            light += stableDiscs(LIGHT) * STABLE_WEIGHT;
+            dark += stableDiscs(DARK) * STABLE_WEIGHT;
+        }
+        // The patterns score from dark's side.
+        if (patterns != null) dark += patterns.score(patternCodes, lightDiscs + darkDiscs);
+
+        int result = color == Board.DARK ? dark - light : light - dark;
+
+        return result;
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder(20 * WIDTH * WIDTH);
+        char blue[] = {0x1b, '[', '4', '4', 'm', 0};
+        char red[] = {0x1b, '[', '4', '1', 'm', 0};
+        char white[] = {0x1b, '[', '4', '7', 'm', 0};
+        char underline[] = {0x1b, '[', '4', 'm', 0};
+        char noColor[] = {0x1b, '[', '4', '9', 'm', 0};
+        char noFormat[] = {0x1b, '[', '0', 'm', 0};
+        s.append(' ');
+        for (int i = -1; i < WIDTH; i++) {
+            if (i > -1) s.append((char) (i + 'a') + " ");
+            else {
+                s.append(" ");
+                s.append(underline);
+                s.append(" ");
+            }
+        }
+
+        s.append('\n');
+        for (int y = 0; y < WIDTH; y++) {
+            s.append(noFormat);
+            s.append((y + 1) + ((y + 1) < 10 ? " " : ""));
+            s.append(underline);
+            s.append('|');
+            for (int x = 0; x < WIDTH; x++) {
+                switch (get(x, y)) {
+                    case EMPTY:
+                        s.append(white);
+                        break;
+                    case DARK:
+                        s.append(red);
+                        break;
+                    case LIGHT:
+                        s.append(blue);
+                        break;
+                }
+                s.append(' ');
+                s.append(noColor);
+                s.append('|');
+            }
+            if (y != WIDTH - 1) s.append('\n');
+        }
+        s.append(noFormat);
+        return s.toString();
+    }
+}
+
+class ArrayBoard extends Board {
+    private byte[][] spaces;
+
+    // Undo stack for makeMove: flipped squares, plus per ply the flip stack height, move and hash.
+    private int[] undoFlips;
+    private int[] undoTop;
+    private int[] undoSquare;
+    private long[] undoHash;
+    private int undoPly;
+    private int flipTop;
+
+    public ArrayBoard(int size) {
+        WIDTH = size;
+        spaces = new byte[WIDTH][WIDTH];
+        init();
+        hash = Zobrist.hash(this);
+        initEvaluation();
+    }
+
+    public ArrayBoard(ArrayBoard b) {
+        WIDTH = b.spaces.length;
+        spaces = new byte[WIDTH][WIDTH];
+        for (int i = 0; i < WIDTH; i++) {
+            System.arraycopy(b.spaces[i], 0, spaces[i], 0, WIDTH);
+        }
+        hash = b.hash;
+        copyEvaluation(b);
+    }
+
+    private void init() {
+        int center = WIDTH / 2;
+        spaces[center - 1][center - 1] = LIGHT;
+        spaces[center][center] = LIGHT;
+        spaces[center - 1][center] = DARK;
+        spaces[center][center - 1] = DARK;
+    }
+
+    public Board copy() {
+        return new ArrayBoard(this);
+    }
+
+    public byte get(int x, int y) {
+        return spaces[x][y];
+    }
+
+    private boolean checkRay(int currentX, int currentY, byte xDif, byte yDif, byte startColor) {
+        if (spaces[currentX][currentY] != EMPTY) return false;
+
+        byte otherColor = (byte) (startColor ^ 3);
+        currentX += xDif;
+        currentY += yDif;
+
+        if (currentX < 0 || currentY < 0 || currentX >= WIDTH || currentY >= WIDTH) return false;
+        if (spaces[currentX][currentY] != otherColor) return false;
+
+        do {
+            currentX += xDif;
+            currentY += yDif;
+        }
+        while (currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == otherColor);
+
+        if (currentX < 0 || currentY < 0 || currentX >= WIDTH || currentY >= WIDTH) return false;
+        if (spaces[currentX][currentY] == startColor) return true;
+        return false;
+    }
+
+    public void moveOn(int moveX, int moveY, byte color) {
+        byte otherColor = (byte) (color ^ 3);
+        for (byte xDif = -1; xDif <= 1; xDif++) {
+            for (byte yDif = -1; yDif <= 1; yDif++) {
+                if (xDif == 0 && yDif == 0) continue;
+
+                if (checkRay(moveX, moveY, xDif, yDif, color)) {
+                    int currentX = moveX + xDif;
+                    int currentY = moveY + yDif;
+                    while (currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == otherColor) {
+                        spaces[currentX][currentY] = color;
+                        hash ^= Zobrist.flip(currentX, currentY);
+                        flipped(currentX * WIDTH + currentY, color);
+                        currentX += xDif;
+                        currentY += yDif;
+                    }
+                }
+            }
+        }
+        spaces[moveX][moveY] = color;
+        hash ^= Zobrist.key(color, moveX, moveY);
+        placed(moveX * WIDTH + moveY, color);
+    }
+
+    public ArrayList<Position> possibleMoves(byte color) {
+        ArrayList<Position> res = new ArrayList<Position>();
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (spaces[x][y] != EMPTY) continue;
+
+                boolean found = false;
+                for (byte xDif = -1; xDif <= 1 && !found; xDif++) {
+                    for (byte yDif = -1; yDif <= 1 && !found; yDif++) {
+                        if (xDif == 0 && yDif == 0) continue;
+                        if (checkRay(x, y, xDif, yDif, color)) {
+                            res.add(new Position(x, y));
+                            found = true;
+                        }
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    public boolean isValidMove(int x, int y, byte color) {
+        if (x < 0 || y < 0 || x >= WIDTH || y >= WIDTH) return false;
+
+        for (byte xDif = -1; xDif <= 1; xDif++) {
+            for (byte yDif = -1; yDif <= 1; yDif++) {
+                if (checkRay(x, y, xDif, yDif, color)) return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean canMove(byte color) {
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (spaces[x][y] != EMPTY) continue;
+
+                for (byte xDif = -1; xDif <= 1; xDif++) {
+                    for (byte yDif = -1; yDif <= 1; yDif++) {
+                        if (xDif == 0 && yDif == 0) continue;
+                        if (checkRay(x, y, xDif, yDif, color)) return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public int generateMoves(byte color, int[] moves) {
+        int count = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (spaces[x][y] != EMPTY) continue;
+
+                boolean found = false;
+                for (byte xDif = -1; xDif <= 1 && !found; xDif++) {
+                    for (byte yDif = -1; yDif <= 1 && !found; yDif++) {
+                        if (xDif == 0 && yDif == 0) continue;
+                        if (checkRay(x, y, xDif, yDif, color)) {
+                            moves[count++] = x * WIDTH + y;
+                            found = true;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    public int countMoves(byte color) {
+        int count = 0;
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (spaces[x][y] != EMPTY) continue;
+
+                boolean found = false;
+                for (byte xDif = -1; xDif <= 1 && !found; xDif++) {
+                    for (byte yDif = -1; yDif <= 1 && !found; yDif++) {
+                        if (xDif == 0 && yDif == 0) continue;
+                        if (checkRay(x, y, xDif, yDif, color)) {
+                            count++;
+                            found = true;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    public void makeMove(int square, byte color) {
+        if (undoTop == null) {
+            undoFlips = new int[WIDTH * WIDTH * 4];
+            undoTop = new int[WIDTH * WIDTH];
+            undoSquare = new int[WIDTH * WIDTH];
+            undoHash = new long[WIDTH * WIDTH];
+        }
+        undoTop[undoPly] = flipTop;
+        undoSquare[undoPly] = square;
+        undoHash[undoPly] = hash;
+        saveEvaluation(undoPly);
+        undoPly++;
+
+        int moveX = square / WIDTH;
+        int moveY = square % WIDTH;
+        byte otherColor = (byte) (color ^ 3);
+        for (byte xDif = -1; xDif <= 1; xDif++) {
+            for (byte yDif = -1; yDif <= 1; yDif++) {
+                if (xDif == 0 && yDif == 0) continue;
+
+                if (checkRay(moveX, moveY, xDif, yDif, color)) {
+                    int currentX = moveX + xDif;
+                    int currentY = moveY + yDif;
+                    while (currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == otherColor) {
+                        spaces[currentX][currentY] = color;
+                        hash ^= Zobrist.flip(currentX, currentY);
+                        flipped(currentX * WIDTH + currentY, color);
+                        if (flipTop == undoFlips.length) undoFlips = Arrays.copyOf(undoFlips, flipTop * 2);
+                        undoFlips[flipTop++] = currentX * WIDTH + currentY;
+                        currentX += xDif;
+                        currentY += yDif;
+                    }
+                }
+            }
+        }
+        spaces[moveX][moveY] = color;
+        hash ^= Zobrist.key(color, moveX, moveY);
+        placed(moveX * WIDTH + moveY, color);
+    }
+
+    public int countFlips(int square, byte color) {
+        int moveX = square / WIDTH;
+        int moveY = square % WIDTH;
+        if (spaces[moveX][moveY] != EMPTY) return 0;
+        byte otherColor = (byte) (color ^ 3);
+        int count = 0;
+        for (int xDif = -1; xDif <= 1; xDif++) {
+            for (int yDif = -1; yDif <= 1; yDif++) {
+                if (xDif == 0 && yDif == 0) continue;
+                int currentX = moveX + xDif;
+                int currentY = moveY + yDif;
+                int run = 0;
+                while (currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == otherColor) {
+                    currentX += xDif;
+                    currentY += yDif;
+                    run++;
+                }
+                if (run > 0 && currentX >= 0 && currentY >= 0 && currentX < WIDTH && currentY < WIDTH && spaces[currentX][currentY] == color) count += run;
+            }
+        }
+        return count;
+    }
+
+    public void undoMove() {
+        undoPly--;
+        int square = undoSquare[undoPly];
+        byte otherColor = (byte) (spaces[square / WIDTH][square % WIDTH] ^ 3);
+        spaces[square / WIDTH][square % WIDTH] = EMPTY;
+        for (int i = undoTop[undoPly]; i < flipTop; i++) {
+            spaces[undoFlips[i] / WIDTH][undoFlips[i] % WIDTH] = otherColor;
+        }
+        flipTop = undoTop[undoPly];
+        hash = undoHash[undoPly];
+        restoreEvaluation(undoPly);
+    }
+
+    public boolean equals(Board b) {
+        if (!(b instanceof ArrayBoard)) return super.equals(b);
+        ArrayBoard other = (ArrayBoard) b;
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                if (spaces[x][y] != other.spaces[x][y]) return false;
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * 8x8 board held as one 64-bit mask per color. Square (x, y) is bit x * 8 + y,
+ * so walking the bits upwards visits squares in the same order as ArrayBoard.
+ */
+class BitBoard extends Board {
+    public static final int SIZE = 8;
+
+    private static final long NOT_Y0 = ~0x0101010101010101L;
+    private static final long NOT_Y7 = ~0x8080808080808080L;
+    private static final long INNER_Y = 0x7E7E7E7E7E7E7E7EL;
+
+    // Shift and post-shift mask for each of the 8 directions, as (x, y) deltas folded into bit offsets.
+    private static final int[] SHIFTS = {8, -8, 1, -1, 9, 7, -7, -9};
+    private static final long[] MASKS = {-1L, -1L, NOT_Y0, NOT_Y7, NOT_Y0, NOT_Y7, NOT_Y0, NOT_Y7};
+
+    private long light;
+    private long dark;
+
+    private long[] undoLight;
+    private long[] undoDark;
+    private long[] undoHash;
+    private int undoPly;
+
+    private static final long CORNERS = 0x8100000000000081L;
+    // Directions in opposite pairs, one pair per line through a square.
+    private static final int[][] AXES = {{0, 1}, {2, 3}, {4, 7}, {5, 6}};
+    // Squares whose neighbour in each direction is off the board.
+    private static final long[] EDGES = new long[8];
+
+    static {
+        for (int[] axis : AXES) {
+            EDGES[axis[0]] = ~shift(-1L, axis[1]);
+            EDGES[axis[1]] = ~shift(-1L, axis[0]);
+        }
+    }
+
+    // Stable discs start from the corners, so until one is taken there are none to count.
+    protected boolean countsStability() {
+        return ((light | dark) & CORNERS) != 0;
+    }
+
+    /**
+     * Board.stableDiscs with masks: the full lines along each axis come from
+     * the squares that see only filled squares to the edge in both directions,
+     * then stable discs spread from the edges until nothing changes.
+     */
+    public int stableDiscs(byte color) {
+        long own = color == LIGHT ? light : dark;
+        if ((own & CORNERS) == 0) return 0;
+        long filled = light | dark;
+        long full0 = fullLine(filled, AXES[0]);
+        long full1 = fullLine(filled, AXES[1]);
+        long full2 = fullLine(filled, AXES[2]);
+        long full3 = fullLine(filled, AXES[3]);
+        long stable = 0;
+        while (true) {
+            long next = own & (full0 | anchored(stable, AXES[0])) & (full1 | anchored(stable, AXES[1]))
+                    & (full2 | anchored(stable, AXES[2])) & (full3 | anchored(stable, AXES[3]));
+            if (next == stable) return Long.bitCount(stable);
+            stable = next;
+        }
+    }
+
+    // Squares on a line along axis that is filled from edge to edge.
+    private static long fullLine(long filled, int[] axis) {
+        long full = -1L;
+        for (int side = 0; side < 2; side++) {
+            int dir = axis[side];
+            int back = axis[1 - side];
+            // Squares with nothing but filled squares from here to the edge in direction dir.
+            long run = filled & EDGES[dir];
+            for (int i = 0; i < 7; i++) run |= filled & shift(run, back);
+            full &= run;
+        }
+        return full;
+    }
+
+    // Squares whose neighbour along axis, one way or the other, is off the board or in stable.
+    private static long anchored(long stable, int[] axis) {
+        return EDGES[axis[0]] | EDGES[axis[1]] | shift(stable, axis[0]) | shift(stable, axis[1]);
+    }
+
+    // Transposes the board about the x = y diagonal with three delta swaps.
+    private static long transpose(long b) {
+        long t = 0x0F0F0F0F00000000L & (b ^ (b << 28));
+        b ^= t ^ (t >>> 28);
+        t = 0x3333000033330000L & (b ^ (b << 14));
+        b ^= t ^ (t >>> 14);
+        t = 0x5500550055005500L & (b ^ (b << 7));
+        b ^= t ^ (t >>> 7);
+        return b;
+    }
+
+    // Moves every square of b the way Symmetry.transform(t, x, y, 8) moves it.
+    static long transform(long b, int t) {
+        if ((t & 4) != 0) b = transpose(b);
+        if ((t & 1) != 0) b = Long.reverseBytes(b);
+        if ((t & 2) != 0) b = Long.reverse(Long.reverseBytes(b));
+        return b;
+    }
+
+    public long symmetricHash(int t) {
+        if (t == 0) return hash;
+        long h = 0;
+        for (long l = transform(light, t); l != 0; l &= l - 1) {
+            int i = Long.numberOfTrailingZeros(l);
+            h ^= Zobrist.key(LIGHT, i >> 3, i & 7);
+        }
+        for (long d = transform(dark, t); d != 0; d &= d - 1) {
+            int i = Long.numberOfTrailingZeros(d);
+            h ^= Zobrist.key(DARK, i >> 3, i & 7);
+        }
+        return h;
+    }
+
+    public BitBoard() {
+        WIDTH = SIZE;
+        light = bit(3, 3) | bit(4, 4);
+        dark = bit(3, 4) | bit(4, 3);
+        hash = Zobrist.hash(this);
+        initEvaluation();
+    }
+
+    public BitBoard(BitBoard b) {
+        WIDTH = SIZE;
+        light = b.light;
+        dark = b.dark;
+        hash = b.hash;
+        copyEvaluation(b);
+    }
+
+    private static long bit(int x, int y) {
+        return 1L << (x * SIZE + y);
+    }
+
+    private static long shift(long b, int dir) {
+        int s = SHIFTS[dir];
+        return (s > 0 ? b << s : b >>> -s) & MASKS[dir];
+    }
+
+    public static long moves(long own, long opp) {
+        long empty = ~(own | opp);
+        long inner = opp & INNER_Y;
+        long res = 0;
+        for (int dir = 0; dir < 8; dir++) {
+            long mask = dir < 2 ? opp : inner;
+            long t = mask & shift(own, dir);
+            t |= mask & shift(t, dir);
+            t |= mask & shift(t, dir);
+            t |= mask & shift(t, dir);
+            t |= mask & shift(t, dir);
+            t |= mask & shift(t, dir);
+            res |= empty & shift(t, dir);
+        }
+        return res;
+    }
+
+    public static long flips(long own, long opp, int square) {
+        long move = 1L << square;
+        long res = 0;
+        for (int dir = 0; dir < 8; dir++) {
+            long f = 0;
+            long cur = shift(move, dir);
+            while ((cur & opp) != 0) {
+                f |= cur;
+                cur = shift(cur, dir);
+            }
+            if ((cur & own) != 0) res |= f;
+        }
+        return res;
+    }
+
+    private long own(byte color) {
+        return color == LIGHT ? light : dark;
+    }
+
+    public Board copy() {
+        return new BitBoard(this);
+    }
+
+    public byte get(int x, int y) {
+        long b = bit(x, y);
+        if ((light & b) != 0) return LIGHT;
+        if ((dark & b) != 0) return DARK;
+        return EMPTY;
+    }
+
+    public void moveOn(int moveX, int moveY, byte color) {
+        int square = moveX * SIZE + moveY;
+        long own = own(color);
+        long opp = own((byte) (color ^ 3));
+        long f = flips(own, opp, square);
+        own |= f | (1L << square);
+        opp &= ~f;
+        hash ^= Zobrist.key(color, moveX, moveY);
+        placed(square, color);
+        for (long m = f; m != 0; m &= m - 1) {
+            int i = Long.numberOfTrailingZeros(m);
+            hash ^= Zobrist.flip(i / SIZE, i % SIZE);
+            flipped(i, color);
+        }
+        if (color == LIGHT) {
+            light = own;
+            dark = opp;
+        } else {
+            dark = own;
+            light = opp;
+        }
+    }
+
+    public ArrayList<Position> possibleMoves(byte color) {
+        long m = moves(own(color), own((byte) (color ^ 3)));
+        ArrayList<Position> res = new ArrayList<Position>(Long.bitCount(m));
+        while (m != 0) {
+            int square = Long.numberOfTrailingZeros(m);
+            res.add(new Position(square / SIZE, square % SIZE));
+            m &= m - 1;
+        }
+        return res;
+    }
+
+    public boolean isValidMove(int x, int y, byte color) {
+        if (x < 0 || y < 0 || x >= SIZE || y >= SIZE) return false;
+        return (moves(own(color), own((byte) (color ^ 3))) & bit(x, y)) != 0;
+    }
+
+    public boolean canMove(byte color) {
+        return moves(own(color), own((byte) (color ^ 3))) != 0;
+    }
+
+    public int generateMoves(byte color, int[] moves) {
+        long m = moves(own(color), own((byte) (color ^ 3)));
+        int count = 0;
+        while (m != 0) {
+            moves[count++] = Long.numberOfTrailingZeros(m);
+            m &= m - 1;
+        }
+        return count;
+    }
+
+    public int countMoves(byte color) {
+        return Long.bitCount(moves(own(color), own((byte) (color ^ 3))));
+    }
+
+    public void makeMove(int square, byte color) {
+        if (undoHash == null) {
+            undoLight = new long[SIZE * SIZE];
+            undoDark = new long[SIZE * SIZE];
+            undoHash = new long[SIZE * SIZE];
+        }
+        undoLight[undoPly] = light;
+        undoDark[undoPly] = dark;
+        undoHash[undoPly] = hash;
+        saveEvaluation(undoPly);
+        undoPly++;
+        moveOn(square / SIZE, square % SIZE, color);
+    }
+
+    public int countFlips(int square, byte color) {
+        if (((light | dark) & (1L << square)) != 0) return 0;
+        return Long.bitCount(flips(own(color), own((byte) (color ^ 3)), square));
+    }
+
+    public void undoMove() {
+        undoPly--;
+        light = undoLight[undoPly];
+        dark = undoDark[undoPly];
+        hash = undoHash[undoPly];
+        restoreEvaluation(undoPly);
+    }
+
+    public boolean equals(Board b) {
+        if (!(b instanceof BitBoard)) return super.equals(b);
+        BitBoard other = (BitBoard) b;
+        return light == other.light && dark == other.dark;
+    }
+}
+
+/**
+ * Board of any width held as one packed bitset per color. Square (x, y) is bit
+ * x * STRIDE + y with STRIDE = WIDTH + 1, so every column carries one padding bit
+ * that is never set; a shift that runs off the top or bottom of a column lands on
+ * padding and is masked away instead of wrapping into the next column.
+ */
+class PackedBoard extends Board {
+    public static final int MAX_SIZE = 26;
+
+    public final int STRIDE;
+    private final int words;
+    private final int[] shifts;
+
+    private long[] light;
+    private long[] dark;
+    private long[] valid;
+
+    private long[] t;
+    private long[] tmp;
+    private long[] res;
+
+    // Undo stack for makeMove: both color sets and the hash, saved per ply.
+    private long[] undoWords;
+    private long[] undoHash;
+    private int undoPly;
+
+    public PackedBoard(int size) {
+        if (size < 4 || size > MAX_SIZE) throw new IllegalArgumentException("Unsupported board size: " + size);
+        WIDTH = size;
+        STRIDE = size + 1;
+        words = (WIDTH * STRIDE + 63) >>> 6;
+        shifts = new int[]{STRIDE, -STRIDE, 1, -1, STRIDE + 1, STRIDE - 1, -STRIDE + 1, -STRIDE - 1};
+        light = new long[words];
+        dark = new long[words];
+        valid = new long[words];
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < WIDTH; y++) {
+                int i = x * STRIDE + y;
+                valid[i >>> 6] |= 1L << i;
+            }
+        }
+        allocScratch();
+        init();
+        hash = Zobrist.hash(this);
+        initEvaluation();
+    }
+
+    public PackedBoard(PackedBoard b) {
+        WIDTH = b.WIDTH;
+        STRIDE = b.STRIDE;
+        words = b.words;
+        shifts = b.shifts;
+        valid = b.valid;
+        light = b.light.clone();
+        dark = b.dark.clone();
+        hash = b.hash;
+        copyEvaluation(b);
+        allocScratch();
+    }
+
+    private void allocScratch() {
+        t = new long[words];
+        tmp = new long[words];
+        res = new long[words];
+    }
+
+    private void init() {
+        int center = WIDTH / 2;
+        set(light, center - 1, center - 1);
+        set(light, center, center);
+        set(dark, center - 1, center);
+        set(dark, center, center - 1);
+    }
+
+    private void set(long[] b, int x, int y) {
+        int i = x * STRIDE + y;
+        b[i >>> 6] |= 1L << i;
+    }
+
+    private static boolean test(long[] b, int i) {
+        return (b[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private long[] own(byte color) {
+        return color == LIGHT ? light : dark;
+    }
+
+    /**
+     * dst = src shifted by s bits (towards higher squares when s is positive).
+     * dst may be the same array as src.
+     */
+    private void shift(long[] src, int s, long[] dst) {
+        if (s > 0) {
+            int ws = s >>> 6;
+            int bs = s & 63;
+            for (int i = words - 1; i >= 0; i--) {
+                int j = i - ws;
+                long v = j >= 0 ? src[j] << bs : 0;
+                if (bs != 0 && j - 1 >= 0) v |= src[j - 1] >>> (64 - bs);
+                dst[i] = v;
+            }
+        } else {
+            s = -s;
+            int ws = s >>> 6;
+            int bs = s & 63;
+            for (int i = 0; i < words; i++) {
+                int j = i + ws;
+                long v = j < words ? src[j] >>> bs : 0;
+                if (bs != 0 && j + 1 < words) v |= src[j + 1] << (64 - bs);
+                dst[i] = v;
+            }
+        }
+    }
+
+    /**
+     * Fills res with the legal moves for the side owning own against opp.
+     * Returns true if there is at least one.
+     */
+    private boolean moves(long[] own, long[] opp) {
+        boolean any = false;
+        for (int i = 0; i < words; i++) res[i] = 0;
+        for (int dir = 0; dir < 8; dir++) {
+            int s = shifts[dir];
+            shift(own, s, t);
+            boolean live = false;
+            for (int i = 0; i < words; i++) {
+                t[i] &= opp[i];
+                live |= t[i] != 0;
+            }
+            for (int step = 2; live && step < WIDTH - 1; step++) {
+                shift(t, s, tmp);
+                live = false;
+                for (int i = 0; i < words; i++) {
+                    long grown = tmp[i] & opp[i] & ~t[i];
+                    t[i] |= grown;
+                    live |= grown != 0;
+                }
+            }
+            shift(t, s, tmp);
+            for (int i = 0; i < words; i++) {
+                long m = tmp[i] & valid[i] & ~(own[i] | opp[i]);
+                res[i] |= m;
+                any |= m != 0;
+            }
+        }
+        return any;
+    }
+
+    public Board copy() {
+        return new PackedBoard(this);
+    }
+
+    public byte get(int x, int y) {
+        int i = x * STRIDE + y;
+        if (test(light, i)) return LIGHT;
+        if (test(dark, i)) return DARK;
+        return EMPTY;
+    }
+
+    public void moveOn(int moveX, int moveY, byte color) {
+        long[] own = own(color);
+        long[] opp = own((byte) (color ^ 3));
+        int square = moveX * STRIDE + moveY;
+        for (int dir = 0; dir < 8; dir++) {
+            int s = shifts[dir];
+            int cur = square + s;
+            int count = 0;
+            while (onBoard(cur) && test(opp, cur)) {
+                cur += s;
+                count++;
+            }
+            if (count == 0 || !onBoard(cur) || !test(own, cur)) continue;
+            for (cur = square + s; count > 0; cur += s, count--) {
+                own[cur >>> 6] |= 1L << cur;
+                opp[cur >>> 6] &= ~(1L << cur);
+                hash ^= Zobrist.flip(cur / STRIDE, cur % STRIDE);
+                flipped(cur / STRIDE * WIDTH + cur % STRIDE, color);
+            }
+        }
+        own[square >>> 6] |= 1L << square;
+        hash ^= Zobrist.key(color, moveX, moveY);
+        placed(moveX * WIDTH + moveY, color);
+    }
+
+    private boolean onBoard(int i) {
+        return i >= 0 && i < WIDTH * STRIDE && i % STRIDE != WIDTH;
+    }
+
+    public ArrayList<Position> possibleMoves(byte color) {
+        ArrayList<Position> list = new ArrayList<Position>();
+        if (!moves(own(color), own((byte) (color ^ 3)))) return list;
+        for (int w = 0; w < words; w++) {
+            long m = res[w];
+            while (m != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(m);
+                list.add(new Position(i / STRIDE, i % STRIDE));
+                m &= m - 1;
+            }
+        }
+        return list;
+    }
+
+    public boolean isValidMove(int x, int y, byte color) {
+        if (x < 0 || y < 0 || x >= WIDTH || y >= WIDTH) return false;
+        return moves(own(color), own((byte) (color ^ 3))) && test(res, x * STRIDE + y);
+    }
+
+    public boolean canMove(byte color) {
+        return moves(own(color), own((byte) (color ^ 3)));
+    }
+
+    public int generateMoves(byte color, int[] moves) {
+        if (!moves(own(color), own((byte) (color ^ 3)))) return 0;
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            long m = res[w];
+            while (m != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(m);
+                moves[count++] = i / STRIDE * WIDTH + i % STRIDE;
+                m &= m - 1;
+            }
+        }
+        return count;
+    }
+
+    public int countMoves(byte color) {
+        if (!moves(own(color), own((byte) (color ^ 3)))) return 0;
+        int count = 0;
+        for (int i = 0; i < words; i++) count += Long.bitCount(res[i]);
+        return count;
+    }
+
+    public void makeMove(int square, byte color) {
+        if (undoHash == null) {
+            undoWords = new long[WIDTH * WIDTH * words * 2];
+            undoHash = new long[WIDTH * WIDTH];
+        }
+        System.arraycopy(light, 0, undoWords, undoPly * words * 2, words);
+        System.arraycopy(dark, 0, undoWords, undoPly * words * 2 + words, words);
+        undoHash[undoPly] = hash;
+        saveEvaluation(undoPly);
+        undoPly++;
+        moveOn(square / WIDTH, square % WIDTH, color);
+    }
+
+    public int countFlips(int square, byte color) {
+        long[] own = own(color);
+        long[] opp = own((byte) (color ^ 3));
+        int start = square / WIDTH * STRIDE + square % WIDTH;
+        if (test(own, start) || test(opp, start)) return 0;
+        int count = 0;
+        for (int dir = 0; dir < 8; dir++) {
+            int s = shifts[dir];
+            int cur = start + s;
+            int run = 0;
+            while (onBoard(cur) && test(opp, cur)) {
+                cur += s;
+                run++;
+            }
+            if (run > 0 && onBoard(cur) && test(own, cur)) count += run;
+        }
+        return count;
+    }
+
+    public void undoMove() {
+        undoPly--;
+        System.arraycopy(undoWords, undoPly * words * 2, light, 0, words);
+        System.arraycopy(undoWords, undoPly * words * 2 + words, dark, 0, words);
+        hash = undoHash[undoPly];
+        restoreEvaluation(undoPly);
+    }
+
+    public boolean equals(Board b) {
+        if (!(b instanceof PackedBoard) || b.WIDTH != WIDTH) return super.equals(b);
+        PackedBoard other = (PackedBoard) b;
+        for (int i = 0; i < words; i++) {
+            if (light[i] != other.light[i] || dark[i] != other.dark[i]) return false;
+        }
+        return true;
+    }
+}
+
+/**
+ * Evaluation from patterns of squares around the corners and edges. Every
+ * pattern is laid down in all eight orientations (Symmetry), even where two
+ * of them cover the same squares, so a position and its reflections score
+ * the same whatever the tables hold. An instance's code is the base-3 number
+ * of its squares with Board's colors as digits (empty 0, light 1, dark 2),
+ * which Board keeps up to date as discs are placed and flipped. The score is
+ * the sum over the instances of a short table for the pattern and the phase
+ * of the game, from dark's point of view.
+ *
+ * The edge pattern is the first eight squares of an edge and the squares
+ * diagonally inside both its ends, the two X squares on 8x8; smaller boards
+ * clip the far one. Looking up the instances costs more per node than the
+ * hand-placed weights did (about 10-20% on 8x8), which only trained tables
+ * make up for in strength.
+ *
+ * The tables come from weightsW.bin for a W wide board when there is one,
+ * otherwise from a few hand-set corner and edge values. Boards only use
+ * the hand-set ones when asked to, with -patterns.
+ */
+class PatternEvaluator {
+    public static final int PHASES = 4;
+
+    public static final int EDGE = 0;
+    public static final int CORNER = 1;
+    public static final int WIDE_CORNER = 2;
+    public static final int DIAGONAL = 3;
+
+    private static final int MAGIC = 0x52565754;
+    // What forWidth has loaded, by width, empty where there are no trained tables.
+    private static final Map<Integer, Optional<PatternEvaluator>> LOADED = new ConcurrentHashMap<Integer, Optional<PatternEvaluator>>();
+    // The hand-set tables, made once per width for -patterns.
+    private static final Map<Integer, PatternEvaluator> SEEDED = new ConcurrentHashMap<Integer, PatternEvaluator>();
+
+    // Squares of each pattern as (x, y) pairs by the (0, 0) corner, before clipping to the board.
+    private static final int[][] SHAPES = {
+            {0, 0, 0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, 0, 7, 1, 1, 1, 6},
+            {0, 0, 0, 1, 0, 2, 1, 0, 1, 1, 1, 2, 2, 0, 2, 1, 2, 2},
+            {0, 0, 0, 1, 0, 2, 0, 3, 0, 4, 1, 0, 1, 1, 1, 2, 1, 3, 1, 4},
+            {0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7},
+    };
+
+    public final int width;
+    // Pattern and squares, lowest digit first, of each instance.
+    public final int[] pattern;
+    public final int[][] squares;
+    // tables[phase][pattern][code]
+    public final short[][][] tables;
+
+    // The instances each square belongs to and its digit's place value there, flattened per square.
+    private final int[] memberStart;
+    private final int[] memberInstance;
+    private final int[] memberPower;
+
+    public PatternEvaluator(int width) {
+        this.width = width;
+        int count = SHAPES.length * Symmetry.COUNT;
+        pattern = new int[count];
+        squares = new int[count][];
+        int[] lengths = new int[SHAPES.length];
+        int[] members = new int[width * width];
+        for (int p = 0; p < SHAPES.length; p++) {
+            int[] shape = SHAPES[p];
+            for (int i = 0; i < shape.length; i += 2) {
+                if (shape[i] < width && shape[i + 1] < width) lengths[p]++;
+            }
+            for (int t = 0; t < Symmetry.COUNT; t++) {
+                int n = p * Symmetry.COUNT + t;
+                pattern[n] = p;
+                squares[n] = new int[lengths[p]];
+                int digit = 0;
+                for (int i = 0; i < shape.length; i += 2) {
+                    if (shape[i] >= width || shape[i + 1] >= width) continue;
+                    int square = Symmetry.transform(t, shape[i], shape[i + 1], width);
+                    squares[n][digit++] = square;
+                    members[square]++;
+                }
+            }
+        }
+
+        memberStart = new int[width * width + 1];
+        for (int s = 0; s < width * width; s++) memberStart[s + 1] = memberStart[s] + members[s];
+        memberInstance = new int[memberStart[width * width]];
+        memberPower = new int[memberInstance.length];
+        int[] next = Arrays.copyOf(memberStart, width * width);
+        for (int n = 0; n < count; n++) {
+            int power = 1;
+            for (int square : squares[n]) {
+                memberInstance[next[square]] = n;
+                memberPower[next[square]++] = power;
+                power *= 3;
+            }
+        }
+
+        tables = new short[PHASES][SHAPES.length][];
+        for (int phase = 0; phase < PHASES; phase++) {
+            for (int p = 0; p < SHAPES.length; p++) tables[phase][p] = new short[pow3(lengths[p])];
+        }
+    }
+
+    public static String fileName(int width) {
+        return "weights" + width + ".bin";
+    }
+
+    /**
+     * The evaluator every board of width starts with: the trained tables from
+     * weightsW.bin, read once and shared, so never to be trained. Null if
+     * there are none, as the hand-set tables alone cost time for no gain.
+     */
+    public static PatternEvaluator forWidth(int width) {
+        return LOADED.computeIfAbsent(width, w -> Optional.ofNullable(trained(w))).orElse(null);
+    }
+
+    // The hand-set tables for width, shared like forWidth's.
+    public static PatternEvaluator seededForWidth(int width) {
+        return SEEDED.computeIfAbsent(width, PatternEvaluator::seeded);
+    }
+
+    // The evaluator with the tables in weightsW.bin, or null if there is no such file or it does not read.
+    private static PatternEvaluator trained(int width) {
+        File f = new File(fileName(width));
+        if (!f.isFile()) return null;
+        PatternEvaluator e = new PatternEvaluator(width);
+        try {
+            e.read(f);
+            return e;
+        } catch (IOException ex) {
+            System.err.println("Weights not loaded: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // The evaluator for width, with trained tables if weightsW.bin is in the working directory.
+    public static PatternEvaluator load(int width) {
+        return load(width, fileName(width));
+    }
+
+    // The evaluator for width with the tables in file, or the hand-set ones if there is no such file.
+    public static PatternEvaluator load(int width, String file) {
+        PatternEvaluator e = new PatternEvaluator(width);
+        File f = new File(file);
+        if (f.isFile()) {
+            try {
+                e.read(f);
+                return e;
+            } catch (IOException ex) {
+                System.err.println("Weights not loaded: " + ex.getMessage());
+            }
+        }
+        e.seed();
+        return e;
+    }
+
+    public static PatternEvaluator seeded(int width) {
+        PatternEvaluator e = new PatternEvaluator(width);
+        e.seed();
+        return e;
+    }
+
+    private static int pow3(int n) {
+        int p = 1;
+        for (int i = 0; i < n; i++) p *= 3;
+        return p;
+    }
+
+    public int instances() {
+        return squares.length;
+    }
+
+    public static int phase(int discs, int width) {
+        return Math.min(PHASES - 1, discs * PHASES / (width * width + 1));
+    }
+
+    // Codes of every instance for b, worked out from scratch.
+    public int[] codes(Board b) {
+        byte[] cells = new byte[width * width];
+        for (int s = 0; s < cells.length; s++) cells[s] = b.get(s / width, s % width);
+        return codes(cells);
+    }
+
+    // Codes of every instance for the colors of each square.
+    public int[] codes(byte[] cells) {
+        int[] codes = new int[squares.length];
+        for (int n = 0; n < squares.length; n++) {
+            int code = 0;
+            for (int i = squares[n].length - 1; i >= 0; i--) code = code * 3 + cells[squares[n][i]];
+            codes[n] = code;
+        }
+        return codes;
+    }
+
+    public void placed(int[] codes, int square, byte color) {
+        for (int m = memberStart[square]; m < memberStart[square + 1]; m++) {
+            codes[memberInstance[m]] += color * memberPower[m];
+        }
+    }
+
+    // The disc on square has just turned to color.
+    public void flipped(int[] codes, int square, byte color) {
+        int sign = color == Board.DARK ? 1 : -1;
+        for (int m = memberStart[square]; m < memberStart[square + 1]; m++) {
+            codes[memberInstance[m]] += sign * memberPower[m];
+        }
+    }
+
+    public int score(int[] codes, int discs) {
+        short[][] t = tables[phase(discs, width)];
+        int score = 0;
+        for (int n = 0; n < codes.length; n++) score += t[pattern[n]][codes[n]];
+        return score;
+    }
+
+    /**
+     * Hand-set values for when there are no trained tables: a disc on an X or
+     * C square next to an empty corner is a liability, and a run of discs
+     * along an edge from an owned corner is stable.
+     */
+    private void seed() {
+        int stable = Math.max(1, width / 4);
+        int[] digits = new int[SHAPES[EDGE].length / 2];
+        for (int p = 0; p < SHAPES.length; p++) {
+            short[] table = tables[0][p];
+            int length = squares[p * Symmetry.COUNT].length;
+            for (int code = 0; code < table.length; code++) {
+                for (int i = 0, c = code; i < length; i++, c /= 3) digits[i] = c % 3;
+                int value = 0;
+                if (p == EDGE) {
+                    // Digit 0 is the corner, then the edge, and the X squares last.
+                    int edge = Math.min(8, width);
+                    if (digits[0] != Board.EMPTY) {
+                        int run = 0;
+                        while (run < edge && digits[run] == digits[0]) run++;
+                        value += sign(digits[0]) * run * stable;
+                    } else if (edge > 1 && digits[1] != Board.EMPTY) {
+                        value -= sign(digits[1]) * width;
+                    }
+                } else if (p == CORNER && digits[0] == Board.EMPTY && digits[4] != Board.EMPTY) {
+                    value -= sign(digits[4]) * 2 * width;
+                }
+                table[code] = (short) value;
+            }
+            for (int phase = 1; phase < PHASES; phase++) tables[phase][p] = table.clone();
+        }
+    }
+
+    private static int sign(int color) {
+        return color == Board.DARK ? 1 : -1;
+    }
+
+    private void read(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC || in.readInt() != width || in.readInt() != PHASES || in.readInt() != SHAPES.length) {
+                throw new IOException("Not a weights file for width " + width + ": " + f);
+            }
+            for (short[][] phase : tables) {
+                for (short[] table : phase) {
+                    if (in.readInt() != table.length) throw new IOException("Wrong table size in " + f);
+                    for (int i = 0; i < table.length; i++) table[i] = in.readShort();
+                }
+            }
+        }
+    }
+
+    public void write(String file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(PHASES);
+            out.writeInt(SHAPES.length);
+            for (short[][] phase : tables) {
+                for (short[] table : phase) {
+                    out.writeInt(table.length);
+                    for (short v : table) out.writeShort(v);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Headless self-play for training data. Games run on a pool of threads, each
+ * with its own search, playing random moves for the first few plies and
+ * NegamaxSearch moves after that. Every position where someone can move is
+ * written with the evaluation it had without the patterns and the final disc
+ * differential, all from dark's point of view.
+ *
+ * File layout: magic and width, then per position the squares packed four to
+ * a byte (Board's colors, square x * width + y in the low bits first), the
+ * evaluation and the differential as shorts.
+ */
+class SelfPlay {
+    static final int MAGIC = 0x52565350;
+    private static final int RANDOM_PLIES = 8;
+
+    public static void generate(int width, byte engine, int games, int depth, int threads, String file) throws Exception {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ThreadLocal<NegamaxSearch> search = ThreadLocal.withInitial(() -> new NegamaxSearch(width, new TranspositionTable(16)));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            ArrayList<Future<byte[]>> results = new ArrayList<Future<byte[]>>(games);
+            for (int g = 0; g < games; g++) {
+                final long seed = g;
+                results.add(pool.submit(() -> play(Board.create(width, engine), search.get(), depth, new Random(seed))));
+            }
+            int positions = 0;
+            for (int g = 0; g < games; g++) {
+                byte[] record = results.get(g).get();
+                out.write(record);
+                positions += record.length / recordSize(width);
+                if ((g + 1) % 10 == 0) System.out.println((g + 1) + " games, " + positions + " positions");
+            }
+            System.out.println("Wrote " + positions + " positions from " + games + " games to " + file
+                    + " in " + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static int recordSize(int width) {
+        return (width * width + 3) / 4 + 4;
+    }
+
+    // Plays one game and returns its positions as records.
+    private static byte[] play(Board b, NegamaxSearch search, int depth, Random random) throws IOException {
+        int width = b.WIDTH;
+        ArrayList<byte[]> cells = new ArrayList<byte[]>();
+        ArrayList<Integer> evals = new ArrayList<Integer>();
+        int[] moves = new int[width * width];
+        byte color = Board.DARK;
+        for (int ply = 0; ; ply++) {
+            int n = b.generateMoves(color, moves);
+            if (n == 0) {
+                color ^= 3;
+                n = b.generateMoves(color, moves);
+                if (n == 0) break;
+            }
+            byte[] packed = new byte[(width * width + 3) / 4];
+            for (int s = 0; s < width * width; s++) packed[s >> 2] |= b.get(s / width, s % width) << ((s & 3) * 2);
+            cells.add(packed);
+            int discs = b.countDiscs(Board.DARK) + b.countDiscs(Board.LIGHT);
+            evals.add(b.getWeightFor(Board.DARK) - (b.patterns != null ? b.patterns.score(b.patternCodes, discs) : 0));
+
+            if (ply < RANDOM_PLIES) {
+                b.makeMove(moves[random.nextInt(n)], color);
+            } else {
+                search.search(b, color, depth);
+                Position p = search.bestMove();
+                b.makeMove(p.x * width + p.y, color);
+            }
+            color ^= 3;
+        }
+
+        int result = b.countDiscs(Board.DARK) - b.countDiscs(Board.LIGHT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(cells.size() * recordSize(width));
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < cells.size(); i++) {
+            out.write(cells.get(i));
+            out.writeShort(evals.get(i));
+            out.writeShort(result);
+        }
+        return bytes.toByteArray();
+    }
+}
+
+/**
+ * Fits the pattern tables to SelfPlay data by stochastic gradient descent.
+ * The tables learn the part of the final disc differential that the rest of
+ * getWeightFor misses. Threads share float copies of the tables and update
+ * them without locking; an update lost to a race now and then does no harm.
+ */
+class Trainer {
+    private static final float LEARNING_RATE = 0.002f;
+    // Bound on a table entry, so the patterns together stay well inside Board.WIN_SCORE.
+    private static final int MAX_WEIGHT = 150;
+
+    private final PatternEvaluator patterns;
+    private final float[][][] weights;
+
+    // Per position: the phase, the target and the code of every instance.
+    private int[] phases;
+    private float[] targets;
+    private int[][] codes;
+
+    public Trainer(PatternEvaluator patterns) {
+        this.patterns = patterns;
+        weights = new float[PatternEvaluator.PHASES][][];
+        for (int phase = 0; phase < weights.length; phase++) {
+            weights[phase] = new float[patterns.tables[phase].length][];
+            for (int p = 0; p < weights[phase].length; p++) {
+                short[] table = patterns.tables[phase][p];
+                weights[phase][p] = new float[table.length];
+                for (int i = 0; i < table.length; i++) weights[phase][p][i] = table[i];
+            }
+        }
+    }
+
+    /**
+     * Trains the tables for width, starting from the current ones, on the
+     * positions in file and writes them to weightsW.bin.
+     */
+    public static void train(int width, String file, int epochs, int threads) throws Exception {
+        Trainer trainer = new Trainer(PatternEvaluator.load(width));
+        trainer.read(file);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int epoch = 1; epoch <= epochs; epoch++) {
+                System.out.printf(Locale.ROOT, "Epoch %d: mean squared error %.2f%n", epoch, trainer.epoch(pool, threads, new Random(epoch)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        trainer.store();
+        trainer.patterns.write(PatternEvaluator.fileName(width));
+        System.out.println("Wrote " + PatternEvaluator.fileName(width));
+    }
+
+    private void read(String file) throws IOException {
+        int width = patterns.width;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SelfPlay.MAGIC || in.readInt() != width) {
+                throw new IOException("Not self-play data for width " + width + ": " + file);
+            }
+            int count = (int) ((new File(file).length() - 8) / SelfPlay.recordSize(width));
+            phases = new int[count];
+            targets = new float[count];
+            codes = new int[count][];
+            byte[] packed = new byte[(width * width + 3) / 4];
+            byte[] cells = new byte[width * width];
+            for (int i = 0; i < count; i++) {
+                in.readFully(packed);
+                int discs = 0;
+                for (int s = 0; s < cells.length; s++) {
+                    cells[s] = (byte) (packed[s >> 2] >> ((s & 3) * 2) & 3);
+                    if (cells[s] != Board.EMPTY) discs++;
+                }
+                int eval = in.readShort();
+                int result = in.readShort();
+                phases[i] = PatternEvaluator.phase(discs, width);
+                targets[i] = result - eval;
+                codes[i] = patterns.codes(cells);
+            }
+        }
+        System.out.println("Read " + codes.length + " positions from " + file);
+    }
+
+    // One pass over the positions in a random order, split between threads. Returns the mean squared error.
+    private double epoch(ExecutorService pool, int threads, Random random) throws Exception {
+        int[] order = new int[codes.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        ArrayList<Future<Double>> parts = new ArrayList<Future<Double>>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int from = (int) ((long) order.length * t / threads);
+            final int to = (int) ((long) order.length * (t + 1) / threads);
+            parts.add(pool.submit(() -> {
+                double error = 0;
+                for (int i = from; i < to; i++) error += step(order[i]);
+                return error;
+            }));
+        }
+        double error = 0;
+        for (Future<Double> f : parts) error += f.get();
+        return error / Math.max(1, codes.length);
+    }
+
+    // One gradient step on position i; returns its squared error before the step.
+    private double step(int i) {
+        float[][] w = weights[phases[i]];
+        int[] c = codes[i];
+        float predicted = 0;
+        for (int n = 0; n < c.length; n++) predicted += w[patterns.pattern[n]][c[n]];
+        float error = targets[i] - predicted;
+        float delta = LEARNING_RATE * error;
+        for (int n = 0; n < c.length; n++) w[patterns.pattern[n]][c[n]] += delta;
+        return (double) error * error;
+    }
+
+    // Rounds the trained weights back into the evaluator's tables.
+    private void store() {
+        for (int phase = 0; phase < weights.length; phase++) {
+            for (int p = 0; p < weights[phase].length; p++) {
+                short[] table = patterns.tables[phase][p];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (short) Math.max(-MAX_WEIGHT, Math.min(MAX_WEIGHT, Math.round(weights[phase][p][i])));
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Plays two engine configurations against each other inside one JVM, so a
+ * long match needs neither a process per game nor referee.py. Games run on a
+ * thread pool. Each opening is a few random plies that a shallow search
+ * scores as roughly level, played once with each engine as dark. The result
+ * is reported as a score, an Elo difference with a 95% interval and a
+ * sequential probability ratio test of ELO0 against ELO1, which ends the
+ * match early once it is decided.
+ *
+ * An engine is given as negamax,key=value,... or tree,key=value,... for
+ * NegamaxSearch or PlayTree, where depth or ms bounds each move, hash is its
+ * table in megabytes, endgame the empties at which EndgameSolver takes over,
+ * weights a pattern table file (or seed for the hand-set tables) and mpc the
+ * Multi-ProbCut threshold, using mpcW.txt. A tree engine also takes treemem,
+ * its node pool in megabytes, and keeps its tree from one move to the next.
+ */
+class MatchRunner {
+    private static final double ELO0 = 0;
+    private static final double ELO1 = 10;
+    // Error rates of the SPRT, for both hypotheses.
+    private static final double ALPHA = 0.05;
+    private static final double BETA = 0.05;
+
+    private static final int OPENING_PLIES = 8;
+    // Largest depth-4 score, in getWeightFor units, an opening may have.
+    private static final int BALANCED = 10;
+
+    private static class Engine {
+        final String spec;
+        final boolean tree;
+        int depth = 64;
+        long millis;
+        int hash = 16;
+        int treeMegabytes = 16;
+        int endgame;
+        PatternEvaluator patterns;
+        ProbCut probCut;
+
+        Engine(String spec, int width) throws IOException {
+            this.spec = spec;
+            String[] parts = spec.split(",");
+            if (!parts[0].equals("negamax") && !parts[0].equals("tree")) throw new IllegalArgumentException("Unknown engine " + parts[0] + " in " + spec);
+            tree = parts[0].equals("tree");
+            for (int i = 1; i < parts.length; i++) {
+                String[] kv = parts[i].split("=", 2);
+                if (kv.length != 2) throw new IllegalArgumentException("Expected key=value in " + spec);
+                if (kv[0].equals("depth")) depth = Integer.parseInt(kv[1]);
+                else if (kv[0].equals("ms")) millis = Long.parseLong(kv[1]);
+                else if (kv[0].equals("hash")) hash = Integer.parseInt(kv[1]);
+                else if (kv[0].equals("treemem") && tree) treeMegabytes = Integer.parseInt(kv[1]);
+                else if (kv[0].equals("endgame")) endgame = Integer.parseInt(kv[1]);
+                else if (kv[0].equals("mpc")) probCut = ProbCut.load(width, Double.parseDouble(kv[1]));
+                else if (kv[0].equals("weights")) patterns = kv[1].equals("seed") ? PatternEvaluator.seeded(width) : PatternEvaluator.load(width, kv[1]);
+                else throw new IllegalArgumentException("Unknown engine option " + kv[0] + " in " + spec);
+            }
+        }
+    }
+
+    // One engine's search state for one game.
+    private static class Player {
+        private final Engine engine;
+        private final TranspositionTable table;
+        // One of the two, as the engine says.
+        private final NegamaxSearch search;
+        private final PlayTree tree;
+        private final EndgameSolver endgame;
+
+        // A player for color in a game starting from start.
+        Player(Engine engine, Board start, byte color) {
+            this.engine = engine;
+            table = new TranspositionTable(engine.hash);
+            if (engine.tree) {
+                search = null;
+                tree = new PlayTree(start, PlayTree.MAX_NODE, color, table, engine.probCut, true, (long) engine.treeMegabytes << 20);
+            } else {
+                search = new NegamaxSearch(start.WIDTH, table);
+                search.probCut = engine.probCut;
+                tree = null;
+            }
+            endgame = new EndgameSolver(start.WIDTH);
+        }
+
+        Position move(Board b, byte color) {
+            Board pos = b.copy();
+            if (engine.patterns != null) pos.usePatterns(engine.patterns);
+            int empties = pos.WIDTH * pos.WIDTH - pos.countDiscs(Board.DARK) - pos.countDiscs(Board.LIGHT);
+            if (empties <= engine.endgame) {
+                endgame.solve(pos, color, false);
+                return endgame.bestMove();
+            }
+
+            table.newSearch();
+            long deadline = engine.millis > 0 ? System.currentTimeMillis() + engine.millis : Long.MAX_VALUE;
+            if (tree != null) return treeMove(pos, color, empties, deadline);
+            search.setDeadline(deadline);
+            Position best = null;
+            try {
+                for (int depth = 1; depth <= Math.min(engine.depth, empties); depth++) {
+                    // An aborted search leaves its board part way through, so each gets a copy.
+                    search.search(pos.copy(), color, depth);
+                    best = search.bestMove();
+                    if (System.currentTimeMillis() >= deadline) break;
+                }
+            } catch (SearchAborted e) {
+                // Play the last completed depth.
+            }
+            search.setDeadline(Long.MAX_VALUE);
+            if (best == null) {
+                search.search(pos, color, 1);
+                best = search.bestMove();
+            }
+            return best;
+        }
+
+        private Position treeMove(Board pos, byte color, int empties, long deadline) {
+            tree.advance(pos, PlayTree.MAX_NODE);
+            // After the opponent passes the root is still the position this player moved to.
+            if (tree.rootType() != PlayTree.MAX_NODE) tree.clear(pos, PlayTree.MAX_NODE);
+            tree.ordering().newSearch();
+            tree.setDeadline(deadline);
+            Position best = null;
+            try {
+                for (int depth = 1; depth <= Math.min(engine.depth, empties); depth++) {
+                    tree.search(depth, -Searcher.INFINITY, Searcher.INFINITY);
+                    best = tree.bestChild();
+                    if (System.currentTimeMillis() >= deadline) break;
+                }
+            } catch (SearchAborted e) {
+                // Play the last completed depth.
+            }
+            tree.setDeadline(Long.MAX_VALUE);
+            if (best == null) {
+                tree.search(1, -Searcher.INFINITY, Searcher.INFINITY);
+                best = tree.bestChild();
+            }
+            Board after = pos.copy();
+            after.moveOn(best, color);
+            tree.advance(after, PlayTree.MIN_NODE);
+            return best;
+        }
+    }
+
+    private final int width;
+    private final byte boardEngine;
+    private final Engine a;
+    private final Engine b;
+    private volatile boolean stopped;
+
+    private int wins;
+    private int draws;
+    private int losses;
+
+    public MatchRunner(int width, byte boardEngine, String a, String b) throws IOException {
+        this.width = width;
+        this.boardEngine = boardEngine;
+        this.a = new Engine(a, width);
+        this.b = new Engine(b, width);
+    }
+
+    /**
+     * Plays up to games games, rounded up to whole pairs, on threads threads
+     * and prints the result as each game finishes and at the end.
+     */
+    public static void run(int width, byte boardEngine, int games, String a, String b, int threads) throws Exception {
+        new MatchRunner(width, boardEngine, a, b).run((games + 1) / 2, threads);
+    }
+
+    private void run(int pairs, int threads) throws Exception {
+        System.out.println("A: " + a.spec);
+        System.out.println("B: " + b.spec);
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<Double> results = new ExecutorCompletionService<Double>(pool);
+        try {
+            for (int p = 0; p < pairs; p++) {
+                // Both games of a pair draw the same opening from the pair's seed, when they start.
+                final long seed = p;
+                results.submit(() -> game(a, b, opening(new Random(seed))));
+                results.submit(() -> 1 - game(b, a, opening(new Random(seed))));
+            }
+            for (int g = 0; g < 2 * pairs; g++) {
+                double score = results.take().get();
+                if (score == 1) wins++;
+                else if (score == 0) losses++;
+                else draws++;
+                System.out.println("Game " + (g + 1) + ": " + summary());
+                if (sprtDecided()) {
+                    stopped = true;
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitTermination(1, TimeUnit.DAYS);
+
+        int n = wins + draws + losses;
+        double score = (wins + draws / 2.0) / n;
+        double margin = 1.96 * Math.sqrt(variance() / n);
+        System.out.printf(Locale.ROOT, "%d games in %d s: %s%n", n, (System.currentTimeMillis() - start) / 1000, summary());
+        System.out.printf(Locale.ROOT, "Elo difference %+.1f (95%% %+.1f to %+.1f)%n",
+                elo(score), elo(score - margin), elo(score + margin));
+        System.out.printf(Locale.ROOT, "SPRT elo0=%.0f elo1=%.0f: LLR %.2f in [%.2f, %.2f], %s%n", ELO0, ELO1, llr(),
+                Math.log(BETA / (1 - ALPHA)), Math.log((1 - BETA) / ALPHA),
+                llr() >= Math.log((1 - BETA) / ALPHA) ? "H1 accepted" : llr() <= Math.log(BETA / (1 - ALPHA)) ? "H0 accepted" : "undecided");
+    }
+
+    private String summary() {
+        int n = wins + draws + losses;
+        return String.format(Locale.ROOT, "A +%d =%d -%d, score %.1f%%", wins, draws, losses, 100 * (wins + draws / 2.0) / n);
+    }
+
+    /**
+     * Random moves from the start, as space separated squares, redrawn until
+     * a depth-4 search thinks the position is close to level.
+     */
+    private String opening(Random random) {
+        if (stopped) return "";
+        NegamaxSearch search = new NegamaxSearch(width, null);
+        String best = null;
+        int bestScore = Integer.MAX_VALUE;
+        for (int attempt = 0; attempt < 100 && bestScore > BALANCED; attempt++) {
+            Board board = Board.create(width, boardEngine);
+            StringBuilder moves = new StringBuilder();
+            byte color = Board.DARK;
+            for (int ply = 0; ply < OPENING_PLIES; ply++) {
+                if (!board.canMove(color)) color ^= 3;
+                ArrayList<Position> legal = board.possibleMoves(color);
+                if (legal.isEmpty()) break;
+                Position p = legal.get(random.nextInt(legal.size()));
+                board.moveOn(p, color);
+                moves.append(p).append(' ');
+                color ^= 3;
+            }
+            if (!board.canMove(color)) color ^= 3;
+            int score = Math.abs(search.search(board, color, 4));
+            if (score < bestScore) {
+                bestScore = score;
+                best = moves.toString();
+            }
+        }
+        return best;
+    }
+
+    // Plays one game from opening and returns dark's score: 1 for a win, 0.5 for a draw.
+    private double game(Engine dark, Engine light, String opening) {
+        Board board = Board.create(width, boardEngine);
+        byte color = Perft.replay(board, opening);
+        Player[] players = {null, new Player(light, board, Board.LIGHT), new Player(dark, board, Board.DARK)};
+        while (!stopped) {
+            if (!board.canMove(color)) {
+                color ^= 3;
+                if (!board.canMove(color)) break;
+            }
+            Position p = players[color].move(board, color);
+            if (!board.isValidMove(p, color)) throw new IllegalStateException(players[color].engine.spec + " played illegal move " + p);
+            board.moveOn(p, color);
+            color ^= 3;
+        }
+        int diff = board.countDiscs(Board.DARK) - board.countDiscs(Board.LIGHT);
+        return diff > 0 ? 1 : diff < 0 ? 0 : 0.5;
+    }
+
+    private static double elo(double score) {
+        score = Math.max(1e-6, Math.min(1 - 1e-6, score));
+        return -400 * Math.log10(1 / score - 1);
+    }
+
+    private static double expected(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    // Variance of a single game's score for A.
+    private double variance() {
+        int n = wins + draws + losses;
+        double s = (wins + draws / 2.0) / n;
+        return (wins * (1 - s) * (1 - s) + draws * (0.5 - s) * (0.5 - s) + losses * s * s) / n;
+    }
+
+    // Log likelihood ratio of ELO1 against ELO0, in the usual normal approximation.
+    private double llr() {
+        int n = wins + draws + losses;
+        double var = variance();
+        if (n == 0 || var == 0) return 0;
+        double s = (wins + draws / 2.0) / n;
+        double s0 = expected(ELO0);
+        double s1 = expected(ELO1);
+        return n * (s1 - s0) * (2 * s - s0 - s1) / (2 * var);
+    }
+
+    private boolean sprtDecided() {
+        double llr = llr();
+        return llr >= Math.log((1 - BETA) / ALPHA) || llr <= Math.log(BETA / (1 - ALPHA));
+    }
+}
+
+/**
+ * Answers position analysis requests over a local socket from one warm JVM,
+ * so a caller does not pay for a process and fresh tables per position. The
+ * address is a TCP port on the loopback interface or the path of a Unix
+ * domain socket. Each client gets a thread of its own, a virtual one where
+ * the JVM has them, at most threads searches run at once, and all clients
+ * share one transposition table per board size.
+ *
+ * One request per line:
+ *
+ *   size side limits [moves...]
+ *
+ * side is d or l, or - for whoever is to move after moves, which are played
+ * from the start position as for -position. limits is - for the default depth
+ * or a comma separated list of depth=N, ms=N and nodes=N; the search stops at
+ * whichever it reaches first. One answer per line:
+ *
+ *   ok move=c4 score=12 depth=9 exact=0 nodes=48211 ms=35 pv=c4 c3 d3
+ *
+ * with the score from side's point of view, and a final disc differential
+ * when exact is 1. A bad request gets err and a message; quit hangs up.
+ */
+class AnalysisServer {
+    private static final int MAX_WIDTH = 26;
+
+    // What every client shares for one board size.
+    private static class Size {
+        final Board start;
+        final TranspositionTable table;
+        final ProbCut probCut;
+
+        Size(Board start, TranspositionTable table, ProbCut probCut) {
+            this.start = start;
+            this.table = table;
+            this.probCut = probCut;
+        }
+    }
+
+    // One client's searchers by board size, kept so their move ordering history carries over between requests.
+    private static class Client {
+        final Map<Integer, NegamaxSearch> searches = new HashMap<Integer, NegamaxSearch>();
+        final Map<Integer, EndgameSolver> solvers = new HashMap<Integer, EndgameSolver>();
+    }
+
+    private final byte boardEngine;
+    private final int hashMegabytes;
+    private final int defaultDepth;
+    private final int endgameEmpties;
+    private final double probCutThreshold;
+    private final boolean ordered;
+    private final Semaphore running;
+    private final Map<Integer, Size> sizes = new ConcurrentHashMap<Integer, Size>();
+
+    public AnalysisServer(byte boardEngine, int hashMegabytes, int defaultDepth, int endgameEmpties, double probCutThreshold, boolean ordered, int threads) {
+        this.boardEngine = boardEngine;
+        this.hashMegabytes = hashMegabytes;
+        this.defaultDepth = defaultDepth;
+        this.endgameEmpties = endgameEmpties;
+        this.probCutThreshold = probCutThreshold;
+        this.ordered = ordered;
+        running = new Semaphore(Math.max(1, threads));
+    }
+
+    /**
+     * An executor that starts a virtual thread per task on Java 21 and later,
+     * and a platform thread per task, reused once idle, before that.
+     */
+    static ExecutorService threadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // A server socket on a loopback TCP port if address is a number, otherwise on a Unix domain socket at that path.
+    static ServerSocketChannel bind(String address) throws IOException {
+        ServerSocketChannel server;
+        if (address.matches("\\d+")) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        } else {
+            // A socket file left behind by an earlier server would make bind fail; anything else there is not ours to remove.
+            Path path = Paths.get(address);
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (!Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                    throw new IOException("Not replacing " + address + ": it is not a socket");
+                }
+                Files.delete(path);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(address));
+        }
+        return server;
+    }
+
+    // Listens on address until the process is killed.
+    public void listen(String address) throws IOException {
+        ServerSocketChannel server = bind(address);
+        ExecutorService clients = threadPerTask();
+        System.out.println("Analysis server listening on " + server.getLocalAddress()
+                + (clients instanceof ThreadPoolExecutor ? " with platform threads" : " with virtual threads"));
+        try (ServerSocketChannel s = server) {
+            while (true) {
+                SocketChannel channel = s.accept();
+                clients.execute(() -> serve(channel));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Client client = new Client();
+        try (SocketChannel c = channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(c), StandardCharsets.US_ASCII));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(c), StandardCharsets.US_ASCII), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.equals("quit")) break;
+                String answer;
+                try {
+                    answer = analyse(client, line);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    answer = "err " + e.getMessage();
+                }
+                out.println(answer);
+            }
+        } catch (IOException e) {
+            // The client hung up.
+        }
+    }
+
+    // Answers one request line.
+    private String analyse(Client client, String request) {
+        String[] parts = request.split("\\s+", 4);
+        if (parts.length < 3) throw new IllegalArgumentException("Expected: size side limits [moves...]");
+        int width = Integer.parseInt(parts[0]);
+        if (width < 4 || width > MAX_WIDTH || width % 2 != 0) throw new IllegalArgumentException("Unsupported board size " + width);
+        Size size = size(width);
+
+        Board board = size.start.copy();
+        byte color = Perft.replay(board, parts.length > 3 ? parts[3] : null);
+        if (parts[1].equals("d")) color = Board.DARK;
+        else if (parts[1].equals("l")) color = Board.LIGHT;
+        else if (!parts[1].equals("-")) throw new IllegalArgumentException("Side must be d, l or -: " + parts[1]);
+        if (!board.canMove(color)) throw new IllegalArgumentException((color == Board.DARK ? "Dark" : "Light") + " has no legal move");
+
+        int depth = 0;
+        long millis = 0;
+        long nodes = 0;
+        if (!parts[2].equals("-")) {
+            for (String limit : parts[2].split(",")) {
+                String[] kv = limit.split("=", 2);
+                if (kv.length != 2) throw new IllegalArgumentException("Expected key=value in " + parts[2]);
+                if (kv[0].equals("depth")) depth = Integer.parseInt(kv[1]);
+                else if (kv[0].equals("ms")) millis = Long.parseLong(kv[1]);
+                else if (kv[0].equals("nodes")) nodes = Long.parseLong(kv[1]);
+                else throw new IllegalArgumentException("Unknown limit " + kv[0]);
+            }
+        }
+        int empties = width * width - board.countDiscs(Board.DARK) - board.countDiscs(Board.LIGHT);
+        if (depth <= 0) depth = millis > 0 || nodes > 0 ? empties : defaultDepth;
+
+        running.acquireUninterruptibly();
+        try {
+            // The limits count from when the search can start, not from when the request arrived.
+            long start = System.currentTimeMillis();
+            if (empties <= endgameEmpties) {
+                EndgameSolver solver = client.solvers.computeIfAbsent(width, EndgameSolver::new);
+                long before = solver.nodes;
+                int score = solver.solve(board, color, false);
+                Position best = solver.bestMove();
+                return answer(best, score, empties, true, solver.nodes - before, start, best.toString());
+            }
+            return search(client.searches.computeIfAbsent(width, w -> newSearch(size, w)), size.table, board, color,
+                    Math.min(depth, empties), millis > 0 ? start + millis : Long.MAX_VALUE, nodes, start);
+        } finally {
+            running.release();
+        }
+    }
+
+    // Deepens from depth 1 until a limit is reached and answers with the last completed depth.
+    private String search(NegamaxSearch search, TranspositionTable table, Board board, byte color, int maxDepth, long deadline, long nodes, long start) {
+        long before = search.stats.nodes;
+        search.setDeadline(deadline);
+        search.setNodeLimit(nodes > 0 ? before + nodes : Long.MAX_VALUE);
+        Position best = null;
+        String pv = "";
+        int score = 0;
+        int completed = 0;
+        try {
+            for (int depth = 1; depth <= maxDepth; depth++) {
+                // An aborted search leaves its board part way through, so each gets a copy.
+                score = search.search(board.copy(), color, depth);
+                best = search.bestMove();
+                pv = search.principalVariation();
+                completed = depth;
+                if (Math.abs(score) >= Board.WIN_SCORE || System.currentTimeMillis() >= deadline) break;
+            }
+        } catch (SearchAborted e) {
+            // Answer with the last completed depth.
+        } finally {
+            search.setDeadline(Long.MAX_VALUE);
+            search.setNodeLimit(Long.MAX_VALUE);
+        }
+        if (best == null) {
+            // Not even depth 1 fitted in the limits; a move is still better than none.
+            score = search.search(board, color, 1);
+            best = search.bestMove();
+            pv = search.principalVariation();
+            completed = 1;
+        }
+        // The search's own variation stops at the first hash cutoff; other clients' entries may carry it further.
+        String stored = table.principalVariation(board, color, completed);
+        if (stored.length() > pv.length() && stored.startsWith(best.toString())) pv = stored;
+        return answer(best, score, completed, false, search.stats.nodes - before, start, pv);
+    }
+
+    private static String answer(Position best, int score, int depth, boolean exact, long nodes, long start, String pv) {
+        return "ok move=" + best + " score=" + score + " depth=" + depth + " exact=" + (exact ? 1 : 0)
+                + " nodes=" + nodes + " ms=" + (System.currentTimeMillis() - start) + " pv=" + pv;
+    }
+
+    private NegamaxSearch newSearch(Size size, int width) {
+        NegamaxSearch search = new NegamaxSearch(width, size.table);
+        search.probCut = size.probCut;
+        search.setOrdering(ordered);
+        return search;
+    }
+
+    // The shared state for width, made the first time a client asks for it.
+    private Size size(int width) {
+        Size size = sizes.get(width);
+        if (size != null) return size;
+        synchronized (this) {
+            size = sizes.get(width);
+            if (size == null) {
+                ProbCut probCut = null;
+                try {
+                    probCut = probCutThreshold > 0 ? ProbCut.load(width, probCutThreshold) : null;
+                } catch (IOException e) {
+                    System.out.println("Multi-ProbCut fits for " + width + " not loaded: " + e.getMessage());
+                }
+                size = new Size(Board.create(width, boardEngine), new TranspositionTable(hashMegabytes), probCut);
+                sizes.put(width, size);
+            }
+        }
+        return size;
+    }
+}
+
+/**
+ * Plays many games at once in one JVM. Every connection to the address, a
+ * port or socket path as for AnalysisServer, is one game: its first line
+ * holds that game's options, such as -l and -n, which are read after the
+ * host's own, and from then on it speaks the same protocol as a game on
+ * stdin and stdout. Each game waits for its opponent on a thread of its own,
+ * a virtual one where the JVM has them, and hands its searches to a pool of
+ * threads threads, so however many games are open only that many search at
+ * once. Games keep all their search state to themselves.
+ */
+class GameHost {
+    // Small tables by default, as there may be hundreds of games.
+    private static final String[] DEFAULTS = {"-hash", "4", "-treemem", "4"};
+    // The options a game may set for itself; anything else would be the host's business.
+    private static final String[] GAME_OPTIONS = {"-l", "-n", "-b", "-hash", "-treemem", "-depth", "-endgame", "-wld", "-order", "-patterns", "-s", "-mpc", "-openings"};
+
+    private final String[] options;
+    private final ExecutorService cpu;
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+
+    // options are the host's command line, whose -host and its address are dropped.
+    public GameHost(String[] options, int threads) {
+        ArrayList<String> list = new ArrayList<String>(Arrays.asList(DEFAULTS));
+        for (int i = 0; i < options.length; i++) {
+            if (options[i].equals("-host")) i++;
+            else list.add(options[i]);
+        }
+        this.options = list.toArray(new String[0]);
+        cpu = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "host-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Listens on address until the process is killed.
+    public void listen(String address) throws IOException {
+        ServerSocketChannel server = AnalysisServer.bind(address);
+        ExecutorService games = AnalysisServer.threadPerTask();
+        System.out.println("Game host listening on " + server.getLocalAddress()
+                + (games instanceof ThreadPoolExecutor ? " with platform threads" : " with virtual threads"));
+        try (ServerSocketChannel s = server) {
+            while (true) {
+                SocketChannel channel = s.accept();
+                games.execute(() -> play(channel));
+            }
+        } finally {
+            games.shutdownNow();
+            cpu.shutdownNow();
+        }
+    }
+
+    private void play(SocketChannel channel) {
+        int game = started.incrementAndGet();
+        open.incrementAndGet();
+        try (SocketChannel c = channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(c), StandardCharsets.US_ASCII));
+             PrintStream out = new PrintStream(Channels.newOutputStream(c), true, "US-ASCII")) {
+            String line = in.readLine();
+            if (line == null) return;
+            String[] own = line.trim().isEmpty() ? new String[0] : line.trim().split("\\s+");
+            for (String o : own) {
+                if (o.startsWith("-") && !Arrays.asList(GAME_OPTIONS).contains(o)) {
+                    out.println("Option not allowed in a hosted game: " + o);
+                    return;
+                }
+            }
+            String[] args = Arrays.copyOf(options, options.length + own.length);
+            System.arraycopy(own, 0, args, options.length, own.length);
+            System.out.println("Game " + game + " started, " + open.get() + " open: " + line.trim());
+            new Reversi(in, out, cpu).play(args);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Game " + game + " stopped: " + e.getMessage());
+        } finally {
+            System.out.println("Game " + game + " over, " + open.decrementAndGet() + " open");
+        }
+    }
+}
+
+/**
+ * The game tree for tree search, kept from move to move so advance can carry
+ * the subtree of the move actually played into the next search. Nodes live in
+ * a pool of parallel arrays sized from a memory budget instead of as objects
+ * holding boards: one working board follows the search down and back up with
+ * makeMove and undoMove, and a node only records the square that leads to it.
+ *
+ * Nodes cut off by advance go back on a free list. When the pool runs dry the
+ * subtrees visited longest ago are evicted first, then the leaves, which hold
+ * the shallowest results, until an eighth of the pool is free again. The root,
+ * its children and the nodes on the path being searched are never evicted.
+ *
+ * Weights are from color's side whoever is to move, and everything else the
+ * search reads belongs to the tree too, so one game's tree shares nothing
+ * with another's.
+ */
+class PlayTree {
+    public static final byte MIN_NODE = 4;
+    public static final byte MAX_NODE = 8;
+    // Bytes one node takes across the arrays below.
+    public static final int NODE_BYTES = 6 * 4 + 2 + 1;
+    // Enough for the root's children and the search path on any board the referee allows.
+    private static final int MIN_NODES = 1 << 14;
+    // Size of the Multi-ProbCut probe's own table.
+    private static final int PROBE_MEGABYTES = 1;
+    private static final int NONE = -1;
+
+    private final byte color;
+    private final TranspositionTable table;
+    private final MoveOrdering ordering;
+    private final ProbCut probCut;
+    /**
+     * Runs the Multi-ProbCut shallow searches, which need no tree of their own.
+     * It has its own small table: the tree scores from our side and the probe
+     * from the mover's, under the same keys.
+     */
+    private final NegamaxSearch probe;
+    private final ProbCut.Probe shallow;
+    // calcForDepth throws SearchAborted once the clock passes this.
+    private volatile long deadline = Long.MAX_VALUE;
+
+    private final int capacity;
+    private final int[] weight;
+    // Best move found the last time the node was searched, in TranspositionTable move encoding.
+    private final int[] bestMove;
+    private final int[] parent;
+    private final int[] firstChild;
+    // Next child of the same parent, or the next free node.
+    private final int[] nextSibling;
+    // Search that last visited the node, for least recently used eviction.
+    private final int[] lastUsed;
+    private final short[] square;
+    private final byte[] nodeType;
+
+    // Nodes below top that are not in the tree are on the free list.
+    private int top;
+    private int freeList;
+    private int used;
+    private long evictions;
+    private int searches;
+
+    private int root;
+    private Board rootBoard;
+    // Follows the search from rootBoard; copied from it again if a search is aborted part way.
+    private Board board;
+    // Nodes from the root down to the one being searched, which eviction must leave alone.
+    private final int[] path;
+    private int pathLength;
+    // Move list for each ply, made the first time the search gets there.
+    private final int[][] moveLists;
+
+    public PlayTree(Board b, byte type, byte color, TranspositionTable table, ProbCut probCut, boolean ordered, long budget) {
+        this.color = color;
+        this.table = table;
+        this.probCut = probCut;
+        ordering = new MoveOrdering(b.WIDTH, new SearchStats());
+        ordering.enabled = ordered;
+        probe = probCut != null ? new NegamaxSearch(b.WIDTH, table != null ? new TranspositionTable(PROBE_MEGABYTES) : null) : null;
+        if (probe != null) {
+            probe.probCut = probCut;
+            probe.setOrdering(ordered);
+        }
+        shallow = (mover, ply, d, a, bt) -> probe.search(board, mover, d, a, bt);
+        capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_NODES, budget / NODE_BYTES));
+        weight = new int[capacity];
+        bestMove = new int[capacity];
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        lastUsed = new int[capacity];
+        square = new short[capacity];
+        nodeType = new byte[capacity];
+        path = new int[b.WIDTH * b.WIDTH + 2];
+        moveLists = new int[path.length][];
+        clear(b, type);
+    }
+
+    // Throws the whole tree away and starts again from b with a root of the given type.
+    public void clear(Board b, byte type) {
+        top = 0;
+        freeList = NONE;
+        used = 0;
+        pathLength = 0;
+        setRoot(b);
+        root = allocate(NONE, -1, type);
+    }
+
+    /**
+     * Moves the root to the child whose position is b, freeing the rest of the
+     * tree, and returns whether there was one. The root is kept if it is
+     * already at b, as after a pass; otherwise the tree starts again from b.
+     */
+    public boolean advance(Board b, byte type) {
+        if (board.hash == b.hash && board.equals(b)) return true;
+        byte color = moveColor(root);
+        for (int c = firstChild[root]; c != NONE; c = nextSibling[c]) {
+            board.makeMove(square[c], color);
+            boolean found = board.hash == b.hash && board.equals(b);
+            board.undoMove();
+            if (found) {
+                unlink(c);
+                free(root);
+                root = c;
+                parent[c] = NONE;
+                nextSibling[c] = NONE;
+                setRoot(b);
+                return true;
+            }
+        }
+        clear(b, type);
+        return false;
+    }
+
+    public byte rootType() {
+        return nodeType[root];
+    }
+
+    public MoveOrdering ordering() {
+        return ordering;
+    }
+
+    // A snapshot of the counters of every search so far, the Multi-ProbCut probes' included.
+    public SearchStats stats() {
+        SearchStats s = ordering.stats.copy();
+        if (probe != null) s.add(probe.stats);
+        return s;
+    }
+
+    // Makes searches throw SearchAborted once the clock passes deadline. Long.MAX_VALUE for none.
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public int size() {
+        return used;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // Nodes evicted to make room since the tree was made.
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Searches the root to depth inside (alpha, beta) and returns its weight,
+     * from color's side whoever is to move.
+     */
+    public int search(int depth, int alpha, int beta) {
+        searches++;
+        pathLength = 0;
+        reset(root);
+        weight[root] = nodeType[root] == MAX_NODE ? -Searcher.INFINITY : Searcher.INFINITY;
+        try {
+            calcForDepth(root, depth, 0, alpha, beta);
+        } catch (SearchAborted e) {
+            board = rootBoard.copy();
+            throw e;
+        }
+        return weight[root];
+    }
+
+    // The root child with the highest weight after a completed search.
+    public Position bestChild() {
+        Position move = null;
+        int bestWeight = -Searcher.INFINITY;
+        int width = board.WIDTH;
+        for (int c = firstChild[root]; c != NONE; c = nextSibling[c]) {
+            if (weight[c] > bestWeight) {
+                move = new Position(square[c] / width, square[c] % width);
+                bestWeight = weight[c];
+            }
+        }
+        return move;
+    }
+
+    private void setRoot(Board b) {
+        rootBoard = b.copy();
+        board = b.copy();
+    }
+
+    private byte moveColor(int node) {
+        return (byte) (nodeType[node] == MAX_NODE ? color : color ^ 3);
+    }
+
+    // Prepares a node, with board at its position, to be searched again.
+    private void reset(int node) {
+        ordering.stats.evaluations++;
+        weight[node] = board.getWeightFor(color);
+    }
+
+    private int findChild(int node, int move) {
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+            if (square[c] == move) return c;
+        }
+        return NONE;
+    }
+
+    private void calcForDepth(int node, int depth, int current, int parentAlpha, int parentBeta) {
+        if ((++ordering.stats.nodes & 1023) == 0 && System.currentTimeMillis() > deadline) throw SearchAborted.INSTANCE;
+        lastUsed[node] = searches;
+        if (current >= depth) return;
+
+        int alpha = parentAlpha;
+        int beta = parentBeta;
+        byte type = nodeType[node];
+        byte moveColor = moveColor(node);
+
+        long key = board.symmetryKey(moveColor, depth - current);
+        int symmetry = board.symmetry;
+        int width = board.WIDTH;
+        int remaining = depth - current;
+        int hashMove = 0;
+        if (table != null) {
+            long entry = table.probe(key);
+            ordering.stats.hashProbes++;
+            if (entry != 0) {
+                ordering.stats.hashHits++;
+                hashMove = Symmetry.fromCanonical(TranspositionTable.move(entry), symmetry, width);
+                if (current > 0 && TranspositionTable.depth(entry) >= remaining) {
+                    int score = TranspositionTable.score(entry);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER && score >= beta)
+                            || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                        weight[node] = score;
+                        return;
+                    }
+                }
+            }
+        }
+
+        if (probCut != null && current > 0 && remaining >= ProbCut.MIN_DEPTH) {
+            // The shallow searches score from the mover's side, the tree from ours.
+            boolean max = type == MAX_NODE;
+            probe.setDeadline(deadline);
+            int cut = probCut.test(board, moveColor, current, remaining, max ? alpha : -beta, max ? beta : -alpha, shallow);
+            if (cut != 0) {
+                ordering.stats.probCuts++;
+                weight[node] = (cut > 0) == max ? beta : alpha;
+                return;
+            }
+        }
+
+        if (hashMove == 0) hashMove = bestMove[node];
+        int hashSquare = hashMove == 0 ? -1 : TranspositionTable.moveX(hashMove) * width + TranspositionTable.moveY(hashMove);
+
+        path[pathLength++] = node;
+        if (moveLists[current] == null) moveLists[current] = new int[width * width];
+        // The shallow search below reuses this list for the same node, leaving the same moves in another order.
+        int[] moves = moveLists[current];
+        int count = board.generateMoves(moveColor, moves);
+        boolean shallow = ordering.enabled && remaining >= MoveOrdering.SHALLOW_DEPTH && count > 1;
+        if (shallow) {
+            // Children kept from the previous iteration already hold shallower results; otherwise make them.
+            if (firstChild[node] == NONE) {
+                calcForDepth(node, depth - MoveOrdering.SHALLOW_REDUCTION, current, -Searcher.INFINITY, Searcher.INFINITY);
+                reset(node);
+            }
+            double[] keys = ordering.keys(current);
+            for (int i = 0; i < count; i++) {
+                int child = findChild(node, moves[i]);
+                keys[i] = child == NONE ? -1e5 : type == MAX_NODE ? weight[child] : -weight[child];
+            }
+        }
+        ordering.order(moves, count, current, moveColor, hashSquare, shallow);
+
+        byte childType = type == MAX_NODE ? MIN_NODE : MAX_NODE;
+        int best = 0;
+        int bestWeight = 0;
+        for (int i = 0; i < count; i++) {
+            if (alpha >= beta) break;
+            int child = findChild(node, moves[i]);
+            if (child == NONE) child = allocate(node, moves[i], childType);
+            board.makeMove(moves[i], moveColor);
+            reset(child);
+
+            if (i == 0) {
+                calcForDepth(child, depth, current + 1, alpha, beta);
+            } else {
+                // Principal variation search: a null window shows the move is no better than the first, unless it is.
+                if (type == MAX_NODE) calcForDepth(child, depth, current + 1, alpha, alpha + 1);
+                else calcForDepth(child, depth, current + 1, beta - 1, beta);
+                if (weight[child] > alpha && weight[child] < beta) {
+                    reset(child);
+                    calcForDepth(child, depth, current + 1, alpha, beta);
+                }
+            }
+            board.undoMove();
+
+            int w = weight[child];
+            if (best == 0 || (type == MAX_NODE ? w > bestWeight : w < bestWeight)) {
+                best = TranspositionTable.encodeMove(moves[i] / width, moves[i] % width);
+                bestWeight = w;
+            }
+
+            if (type == MAX_NODE) {
+                if (w > weight[node]) weight[node] = w;
+                if (w > alpha) alpha = w;
+            } else {
+                if (w < weight[node]) weight[node] = w;
+                if (w < beta) beta = w;
+            }
+            if (alpha >= beta) ordering.cutoff(moves[i], current, moveColor, remaining, i);
+        }
+        bestMove[node] = best;
+        pathLength--;
+
+        if (table != null && current > 0) {
+            int bound = weight[node] <= parentAlpha ? TranspositionTable.UPPER
+                    : weight[node] >= parentBeta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            table.store(key, remaining, bound, weight[node], Symmetry.toCanonical(best, symmetry, width));
+        }
+    }
+
+    // Takes a node for a child of parentNode reached by playing move, evicting if the pool is full.
+    private int allocate(int parentNode, int move, byte type) {
+        if (freeList == NONE && top == capacity) evict();
+        int node;
+        if (freeList != NONE) {
+            node = freeList;
+            freeList = nextSibling[node];
+        } else if (top < capacity) {
+            node = top++;
+        } else {
+            throw new IllegalStateException("Search tree pool of " + capacity + " nodes is full");
+        }
+        used++;
+        weight[node] = 0;
+        bestMove[node] = 0;
+        parent[node] = parentNode;
+        firstChild[node] = NONE;
+        lastUsed[node] = searches;
+        square[node] = (short) move;
+        nodeType[node] = type;
+        if (parentNode != NONE) {
+            nextSibling[node] = firstChild[parentNode];
+            firstChild[parentNode] = node;
+        } else {
+            nextSibling[node] = NONE;
+        }
+        return node;
+    }
+
+    private void evict() {
+        int target = capacity / 8;
+        int before = used;
+        // Least recently used first: a node is never visited later than its parent, so whole subtrees age together.
+        int oldest = searches;
+        for (int c = firstChild[root]; c != NONE; c = nextSibling[c]) oldest = Math.min(oldest, oldestBelow(c));
+        for (int age = oldest; age < searches && capacity - used < target; age++) evictOlder(root, age);
+        // Then the leaves, layer by layer, while that frees anything.
+        while (capacity - used < target) {
+            int left = used;
+            evictLeaves(root);
+            if (used == left) break;
+        }
+        evictions += before - used;
+    }
+
+    private int oldestBelow(int node) {
+        int oldest = lastUsed[node];
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) oldest = Math.min(oldest, oldestBelow(c));
+        return oldest;
+    }
+
+    // Evicts the subtrees below node, short of the root's children, last visited by search age or earlier.
+    private void evictOlder(int node, int age) {
+        int c = firstChild[node];
+        while (c != NONE) {
+            int next = nextSibling[c];
+            if (node != root && lastUsed[c] <= age) {
+                unlink(c);
+                free(c);
+            } else {
+                evictOlder(c, age);
+            }
+            c = next;
+        }
+    }
+
+    private void evictLeaves(int node) {
+        int c = firstChild[node];
+        while (c != NONE) {
+            int next = nextSibling[c];
+            if (firstChild[c] != NONE) {
+                evictLeaves(c);
+            } else if (node != root && !onPath(c)) {
+                unlink(c);
+                free(c);
+            }
+            c = next;
+        }
+    }
+
+    private boolean onPath(int node) {
+        for (int i = 0; i < pathLength; i++) {
+            if (path[i] == node) return true;
+        }
+        return false;
+    }
+
+    private void unlink(int node) {
+        int p = parent[node];
+        if (firstChild[p] == node) {
+            firstChild[p] = nextSibling[node];
+            return;
+        }
+        int c = firstChild[p];
+        while (nextSibling[c] != node) c = nextSibling[c];
+        nextSibling[c] = nextSibling[node];
+    }
+
+    // Returns node and everything below it to the free list.
+    private void free(int node) {
+        for (int c = firstChild[node]; c != NONE; ) {
+            int next = nextSibling[c];
+            free(c);
+            c = next;
+        }
+        nextSibling[node] = freeList;
+        freeList = node;
+        used--;
+    }
+}
+
+/**
+ * Searches on the opponent's time while play waits for their move. In tree
+ * mode it deepens the current tree, so advanceBoard finds the reply's subtree
+ * already searched; otherwise a search of its own fills the shared
+ * transposition table. Either way it runs on one daemon thread and is stopped
+ * before the board changes.
+ */
+class Ponderer {
+    private final NegamaxSearch search;
+    private Thread thread;
+    private SplitPoint token;
+    private PlayTree tree;
+    private volatile int depth;
+
+    public Ponderer(int width, TranspositionTable table, ProbCut probCut, boolean ordered) {
+        search = new NegamaxSearch(width, table);
+        search.probCut = probCut;
+        search.setOrdering(ordered);
+    }
+
+    // Deepens root, with the opponent to move, from startDepth up to maxDepth.
+    public void start(PlayTree root, int startDepth, int maxDepth) {
+        stop();
+        tree = root;
+        run(() -> {
+            for (int d = startDepth; d <= maxDepth; d++) {
+                root.search(d, -Searcher.INFINITY, Searcher.INFINITY);
+                depth = d;
+            }
+        });
+    }
+
+    // Searches b, which must not change until stop, with color to move from startDepth up to maxDepth.
+    public void start(Board b, byte color, int startDepth, int maxDepth) {
+        stop();
+        tree = null;
+        token = new SplitPoint(null, -Searcher.INFINITY, Searcher.INFINITY, -Searcher.INFINITY, 0);
+        final SplitPoint t = token;
+        run(() -> {
+            for (int d = startDepth; d <= maxDepth; d++) {
+                search.search(b, color, d, -Searcher.INFINITY, Searcher.INFINITY, t);
+                depth = d;
+            }
+        });
+    }
+
+    private void run(Runnable r) {
+        depth = 0;
+        thread = new Thread(() -> {
+            try {
+                r.run();
+            } catch (SearchAborted e) {
+                // Stopped because the opponent has moved.
+            }
+        }, "ponder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops pondering, waits for the thread to finish and returns the last
+     * depth it completed, or 0 if it was not pondering.
+     */
+    public int stop() {
+        if (thread == null) return 0;
+        if (tree != null) tree.setDeadline(0);
+        else token.stop();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (tree != null) tree.setDeadline(Long.MAX_VALUE);
+        thread = null;
+        token = null;
+        return depth;
+    }
+}
+
+/**
+ * Decides how long chooseMove may think. Each move gets a soft target, its
+ * share of what is left of the game budget, and a hard deadline that the
+ * search checks while it runs. A new iteration only starts if the previous
+ * one times the measured effective branching factor should end before the
+ * soft target, which is stretched while the best move keeps changing.
+ */
+class TimeManager {
+    // The referee allows 31 seconds for one move; leave room for the JVM and the pipe.
+    public static final long MOVE_LIMIT = 25000;
+
+    private static final double DEFAULT_EBF = 4;
+    private static final double MAX_EXTENSION = 2.5;
+    private static final long MIN_TIME = 50;
+
+    private final long budget;
+    private final int endgameEmpties;
+
+    private long start;
+    private long soft;
+    private long hard;
+    private double ebf;
+    private double instability;
+    private long lastNodes;
+    private long lastMillis;
+    private Position lastBest;
+
+    public TimeManager(long budget, int endgameEmpties) {
+        this.budget = budget;
+        this.endgameEmpties = endgameEmpties;
+    }
+
+    /**
+     * Starts the clock for a move whose thinking time began at start, with used
+     * milliseconds of the budget already spent and empties squares left.
+     */
+    public void startMove(long start, long used, int empties) {
+        this.start = start;
+        // Our own moves until the endgame solver takes over, plus one held back for the solver.
+        int movesLeft = Math.max(1, (empties - endgameEmpties + 1) / 2) + 1;
+        long left = Math.max(budget - used, MIN_TIME * movesLeft);
+        // Neither target may pass the referee's per-move limit or half of what is left.
+        long cap = Math.min(MOVE_LIMIT, left / 2);
+        soft = Math.min(cap, Math.max(MIN_TIME, left / movesLeft));
+        hard = Math.min(cap, soft * 4);
+        ebf = DEFAULT_EBF;
+        instability = 0;
+        lastNodes = 0;
+        lastMillis = 0;
+        lastBest = null;
+    }
+
+    public long softTime() {
+        return Math.min(hard, (long) (soft * extension()));
+    }
+
+    public long deadline() {
+        return start + hard;
+    }
+
+    private double extension() {
+        return Math.min(MAX_EXTENSION, 1 + 0.5 * instability);
+    }
+
+    // Whether another iteration is expected to finish inside the soft target.
+    public boolean startIteration(long now) {
+        if (lastBest == null) return now < deadline();
+        return now - start + lastMillis * ebf <= softTime();
+    }
+
+    /**
+     * Records an iteration that searched nodes in millis and settled on best,
+     * and updates the branching factor and stability used to plan the next.
+     */
+    public void iterationDone(long nodes, long millis, Position best) {
+        if (lastNodes > 0 && nodes > lastNodes) ebf = Math.min(16, nodes / (double) lastNodes);
+        if (lastBest != null && (best == null || best.x != lastBest.x || best.y != lastBest.y)) instability += 1;
+        else instability *= 0.5;
+        lastNodes = nodes;
+        lastMillis = millis;
+        lastBest = best;
+    }
+
+    public double ebf() {
+        return ebf;
+    }
+}
+
+/**
+ * What chooseMove did for one move, printed to stderr as a single JSON line so
+ * the move protocol on stdout is left alone. Rates are fractions, not percents.
+ */
+class MoveStats {
+    private final StringBuilder json = new StringBuilder();
+    private final StringBuilder iterations = new StringBuilder();
+    private long previousNodes;
+
+    public MoveStats(int moveNumber, byte color, String mode) {
+        json.append("{\"move\":").append(moveNumber)
+                .append(",\"color\":\"").append(color == Board.DARK ? "dark" : "light")
+                .append("\",\"mode\":\"").append(mode).append('"');
+    }
+
+    public MoveStats put(String name, long value) {
+        json.append(",\"").append(name).append("\":").append(value);
+        return this;
+    }
+
+    public MoveStats put(String name, double value) {
+        json.append(",\"").append(name).append("\":").append(String.format(Locale.ROOT, "%.3f", value));
+        return this;
+    }
+
+    // One iterative deepening iteration; the branching factor is against the iteration before it.
+    public void iteration(int depth, long nodes, long millis) {
+        if (iterations.length() > 0) iterations.append(',');
+        iterations.append("{\"depth\":").append(depth).append(",\"nodes\":").append(nodes).append(",\"ms\":").append(millis);
+        if (previousNodes > 0) {
+            iterations.append(",\"ebf\":").append(String.format(Locale.ROOT, "%.3f", nodes / (double) previousNodes));
+        }
+        iterations.append('}');
+        previousNodes = nodes;
+    }
+
+    public MoveStats search(SearchStats s, long millis) {
+        put("nodes", s.nodes);
+        put("nps", s.nodes * 1000 / Math.max(1, millis));
+        put("evaluations", s.evaluations);
+        put("cutoffRate", ratio(s.cutoffs, s.interiorNodes));
+        put("firstMoveCutoffRate", ratio(s.firstMoveCutoffs, s.cutoffs));
+        put("hashHitRate", ratio(s.hashHits, s.hashProbes));
+        put("probCuts", s.probCuts);
+        return this;
+    }
+
+    private static double ratio(long a, long b) {
+        return b == 0 ? 0 : a / (double) b;
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder(json);
+        if (iterations.length() > 0) s.append(",\"iterations\":[").append(iterations).append(']');
+        return s.append('}').toString();
+    }
+}
+
+/**
+ * Counters kept by one searching thread. Searchers hand out copies summed over
+ * their threads, and chooseMove reports the difference over each move.
+ */
+class SearchStats {
+    public long nodes;
+    // Nodes whose moves were generated, ordered and searched.
+    public long interiorNodes;
+    public long evaluations;
+    public long cutoffs;
+    public long firstMoveCutoffs;
+    public long hashProbes;
+    public long hashHits;
+    public long probCuts;
+
+    public SearchStats copy() {
+        SearchStats s = new SearchStats();
+        s.add(this);
+        return s;
+    }
+
+    public void add(SearchStats s) {
+        nodes += s.nodes;
+        interiorNodes += s.interiorNodes;
+        evaluations += s.evaluations;
+        cutoffs += s.cutoffs;
+        firstMoveCutoffs += s.firstMoveCutoffs;
+        hashProbes += s.hashProbes;
+        hashHits += s.hashHits;
+        probCuts += s.probCuts;
+    }
+
+    public void subtract(SearchStats s) {
+        nodes -= s.nodes;
+        interiorNodes -= s.interiorNodes;
+        evaluations -= s.evaluations;
+        cutoffs -= s.cutoffs;
+        firstMoveCutoffs -= s.firstMoveCutoffs;
+        hashProbes -= s.hashProbes;
+        hashHits -= s.hashHits;
+        probCuts -= s.probCuts;
+    }
+}
+
+/**
+ * Decides the order in which a search tries the moves at a node: the hash move
+ * (or the best move from the previous iteration) first, then moves ranked by a
+ * shallow search when enough depth remains, then the killer moves of the ply,
+ * then the rest by their history score. Killers and history are learned from
+ * the beta cutoffs reported through cutoff. One instance per searching thread.
+ */
+class MoveOrdering {
+    // Off to fall back to the hash move followed by raster order, for comparing node counts.
+    public boolean enabled = true;
+
+    // Remaining depth from which moves are ranked by a search SHALLOW_REDUCTION plies shallower.
+    public static final int SHALLOW_DEPTH = 6;
+    public static final int SHALLOW_REDUCTION = 4;
+
+    private static final double HASH_KEY = 1e9;
+    private static final double SHALLOW_KEY = 1e7;
+    private static final double KILLER_KEY = 1e6;
+    private static final int HISTORY_LIMIT = 1 << 19;
+
+    private final int width;
+    private final int[][] killers;
+    private final int[][] history;
+    private final double[][] keys;
+
+    // Receives the interior node and cutoff counts.
+    public final SearchStats stats;
+
+    public MoveOrdering(int width, SearchStats stats) {
+        this.width = width;
+        this.stats = stats;
+        int maxPly = 2 * width * width + 1;
+        killers = new int[maxPly][2];
+        for (int[] k : killers) Arrays.fill(k, -1);
+        history = new int[3][width * width];
+        keys = new double[maxPly][];
+    }
+
+    // Called once per move: killers belong to the old root, history is kept but aged.
+    public void newSearch() {
+        for (int[] k : killers) Arrays.fill(k, -1);
+        for (int[] h : history) {
+            for (int i = 0; i < h.length; i++) h[i] >>= 1;
+        }
+    }
+
+    /**
+     * Returns the array holding one key per move at ply, to be filled in by the
+     * caller with shallow search scores before calling order with shallow set.
+     */
+    public double[] keys(int ply) {
+        if (keys[ply] == null) keys[ply] = new double[width * width];
+        return keys[ply];
+    }
+
+    /**
+     * Sorts the first count squares in moves, best first. hashSquare is tried
+     * first if it is among them, or -1 for none. With shallow set the keys for
+     * ply already hold shallow search scores from the mover's point of view.
+     */
+    public void order(int[] moves, int count, int ply, byte color, int hashSquare, boolean shallow) {
+        stats.interiorNodes++;
+        if (!enabled) {
+            if (hashSquare < 0) return;
+            for (int i = 1; i < count; i++) {
+                if (moves[i] == hashSquare) {
+                    moves[i] = moves[0];
+                    moves[0] = hashSquare;
+                    break;
+                }
+            }
+            return;
+        }
+
+        double[] key = keys(ply);
+        int[] killer = killers[ply];
+        int[] hist = history[color];
+        for (int i = 0; i < count; i++) {
+            int square = moves[i];
+            if (square == hashSquare) key[i] = HASH_KEY;
+            else if (shallow) key[i] += SHALLOW_KEY;
+            else if (square == killer[0]) key[i] = KILLER_KEY + 1;
+            else if (square == killer[1]) key[i] = KILLER_KEY;
+            else key[i] = hist[square];
+        }
+
+        for (int i = 1; i < count; i++) {
+            int square = moves[i];
+            double k = key[i];
+            int j = i - 1;
+            while (j >= 0 && key[j] < k) {
+                moves[j + 1] = moves[j];
+                key[j + 1] = key[j];
+                j--;
+            }
+            moves[j + 1] = square;
+            key[j + 1] = k;
+        }
+    }
+
+    // The move at index in the ordered list caused a beta cutoff with depth plies left.
+    public void cutoff(int square, int ply, byte color, int depth, int index) {
+        stats.cutoffs++;
+        if (index == 0) stats.firstMoveCutoffs++;
+        if (!enabled) return;
+
+        int[] killer = killers[ply];
+        if (killer[0] != square) {
+            killer[1] = killer[0];
+            killer[0] = square;
+        }
+        int[] hist = history[color];
+        hist[square] += depth * depth;
+        if (hist[square] > HISTORY_LIMIT) {
+            for (int[] h : history) {
+                for (int i = 0; i < h.length; i++) h[i] >>= 1;
+            }
+        }
+    }
+}
+
+/**
+ * Multi-ProbCut. A search to depth d and shallower searches of the same
+ * position are close to linear in each other, deep = a * shallow + b with
+ * normal error sigma, with a, b and sigma depending on the depths and the
+ * phase of the game. Before searching a node deeply, test tries one or two
+ * shallow null-window searches placed so that, if they fail, the deep search
+ * would fail high (or low) with probability given by threshold, and prunes
+ * the node if they do.
+ *
+ * The fits are read from mpcW.txt, one "phase depth shallow a b sigma" per
+ * line, which calibrate writes from pairs of scores recorded for the same
+ * positions at every depth.
+ */
+class ProbCut {
+    public static final int MIN_DEPTH = 4;
+
+    public interface Probe {
+        // Searches the node at ply to depth with the window (alpha, beta), fail-soft, from color's side.
+        int search(byte color, int ply, int depth, int alpha, int beta);
+    }
+
+    static class Fit {
+        final int shallow;
+        final double a;
+        final double b;
+        final double sigma;
+
+        Fit(int shallow, double a, double b, double sigma) {
+            this.shallow = shallow;
+            this.a = a;
+            this.b = b;
+            this.sigma = sigma;
+        }
+    }
+
+    private final int width;
+    private final double threshold;
+    // fits[phase][depth], shallowest check first.
+    private final Fit[][][] fits;
+
+    private ProbCut(int width, double threshold, Fit[][][] fits) {
+        this.width = width;
+        this.threshold = threshold;
+        this.fits = fits;
+    }
+
+    public static String fileName(int width) {
+        return "mpc" + width + ".txt";
+    }
+
+    // The shallow depths checked before a search to depth.
+    static int[] shallowDepths(int depth) {
+        int quarter = Math.max(1, depth / 4);
+        int half = depth / 2;
+        return quarter == half ? new int[] {half} : new int[] {quarter, half};
+    }
+
+    /**
+     * The fits for width from the working directory with the given confidence
+     * threshold in standard deviations, or null if there are none.
+     */
+    public static ProbCut load(int width, double threshold) throws IOException {
+        File f = new File(fileName(width));
+        if (!f.isFile()) return null;
+        ArrayList<Fit>[][] lists = fitLists();
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] v = line.split("\\s+");
+                int phase = Integer.parseInt(v[0]);
+                int depth = Integer.parseInt(v[1]);
+                if (depth >= lists[phase].length) continue;
+                lists[phase][depth].add(new Fit(Integer.parseInt(v[2]), Double.parseDouble(v[3]), Double.parseDouble(v[4]), Double.parseDouble(v[5])));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Bad line in " + f + ": " + e.getMessage());
+        }
+        Fit[][][] fits = new Fit[lists.length][lists[0].length][];
+        for (int phase = 0; phase < lists.length; phase++) {
+            for (int depth = 0; depth < lists[phase].length; depth++) {
+                lists[phase][depth].sort((x, y) -> x.shallow - y.shallow);
+                fits[phase][depth] = lists[phase][depth].toArray(new Fit[0]);
+            }
+        }
+        return new ProbCut(width, threshold, fits);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayList<Fit>[][] fitLists() {
+        ArrayList<Fit>[][] lists = new ArrayList[PatternEvaluator.PHASES][64];
+        for (ArrayList<Fit>[] phase : lists) {
+            for (int d = 0; d < phase.length; d++) phase[d] = new ArrayList<Fit>();
+        }
+        return lists;
+    }
+
+    /**
+     * Tests b, to be searched at ply to depth inside (alpha, beta) with color
+     * to move, and returns 1 if the deep search is predicted to fail high, -1
+     * if it is predicted to fail low, and 0 if it has to be searched.
+     */
+    public int test(Board b, byte color, int ply, int depth, int alpha, int beta, Probe probe) {
+        if (depth >= fits[0].length) return 0;
+        int discs = b.countDiscs(Board.DARK) + b.countDiscs(Board.LIGHT);
+        for (Fit f : fits[PatternEvaluator.phase(discs, width)][depth]) {
+            double margin = threshold * f.sigma;
+            double high = Math.ceil((beta + margin - f.b) / f.a);
+            if (high < Board.WIN_SCORE && probe.search(color, ply, f.shallow, (int) high - 1, (int) high) >= high) return 1;
+            double low = Math.floor((alpha - margin - f.b) / f.a);
+            if (low > -Board.WIN_SCORE && probe.search(color, ply, f.shallow, (int) low, (int) low + 1) <= low) return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Scores positions random moves into the game at every depth from 0 to
+     * maxDepth, appends them to mpcW.pairs and fits every depth pair test
+     * uses from everything in that file into mpcW.txt.
+     */
+    public static void calibrate(int width, byte engine, int positions, int maxDepth, int threads) throws Exception {
+        String pairs = "mpc" + width + ".pairs";
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ThreadLocal<NegamaxSearch> search = ThreadLocal.withInitial(() -> {
+            NegamaxSearch s = new NegamaxSearch(width, new TranspositionTable(16));
+            s.probCut = null;
+            return s;
+        });
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pairs, true)))) {
+            ArrayList<Future<int[]>> results = new ArrayList<Future<int[]>>(positions);
+            for (int i = 0; i < positions; i++) {
+                final long seed = i + start;
+                results.add(pool.submit(() -> scores(width, engine, search.get(), maxDepth, new Random(seed))));
+            }
+            for (int i = 0; i < positions; i++) {
+                int[] scores = results.get(i).get();
+                out.writeInt(scores.length);
+                for (int v : scores) out.writeInt(v);
+                if ((i + 1) % 50 == 0) System.out.println((i + 1) + " positions");
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("Recorded " + positions + " positions in " + (System.currentTimeMillis() - start) + " ms");
+        fit(width, pairs);
+    }
+
+    // The phase, then the score at each depth from 0 to maxDepth, of a random position with a move to play.
+    private static int[] scores(int width, byte engine, NegamaxSearch search, int maxDepth, Random random) {
+        int[] moves = new int[width * width];
+        Board b;
+        byte color;
+        do {
+            b = Board.create(width, engine);
+            color = Board.DARK;
+            int plies = random.nextInt(Math.max(1, width * width - 4 - maxDepth));
+            for (int ply = 0; ply < plies && (b.canMove(color) || b.canMove((byte) (color ^ 3))); ply++) {
+                int n = b.generateMoves(color, moves);
+                if (n == 0) {
+                    color ^= 3;
+                    n = b.generateMoves(color, moves);
+                }
+                b.makeMove(moves[random.nextInt(n)], color);
+                color ^= 3;
+            }
+            if (!b.canMove(color)) color ^= 3;
+            // Start over if the game finished before reaching a position to score.
+        } while (!b.canMove(color));
+        int[] scores = new int[maxDepth + 2];
+        scores[0] = PatternEvaluator.phase(b.countDiscs(Board.DARK) + b.countDiscs(Board.LIGHT), width);
+        scores[1] = b.getWeightFor(color);
+        for (int depth = 1; depth <= maxDepth; depth++) scores[depth + 1] = search.search(b, color, depth);
+        return scores;
+    }
+
+    // Least squares fits of deep on shallow scores for every phase and depth pair in pairs.
+    private static void fit(int width, String pairs) throws IOException {
+        ArrayList<int[]> records = new ArrayList<int[]>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pairs)))) {
+            while (in.available() > 0) {
+                int[] r = new int[in.readInt()];
+                for (int i = 0; i < r.length; i++) r[i] = in.readInt();
+                records.add(r);
+            }
+        }
+
+        int written = 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName(width)))) {
+            out.println("# phase depth shallow a b sigma, from " + records.size() + " positions");
+            for (int phase = 0; phase < PatternEvaluator.PHASES; phase++) {
+                for (int depth = MIN_DEPTH; depth < 64; depth++) {
+                    for (int shallow : shallowDepths(depth)) {
+                        double n = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+                        for (int[] r : records) {
+                            if (r[0] != phase || r.length < depth + 2) continue;
+                            double x = r[shallow + 1];
+                            double y = r[depth + 1];
+                            // Proven wins and losses are not on the line.
+                            if (Math.abs(x) >= Board.WIN_SCORE || Math.abs(y) >= Board.WIN_SCORE) continue;
+                            n++;
+                            sx += x;
+                            sy += y;
+                            sxx += x * x;
+                            sxy += x * y;
+                        }
+                        if (n < 30 || n * sxx - sx * sx == 0) continue;
+                        double a = (n * sxy - sx * sy) / (n * sxx - sx * sx);
+                        double b = (sy - a * sx) / n;
+                        if (a <= 0) continue;
+                        double squares = 0;
+                        for (int[] r : records) {
+                            if (r[0] != phase || r.length < depth + 2) continue;
+                            double x = r[shallow + 1];
+                            double y = r[depth + 1];
+                            if (Math.abs(x) >= Board.WIN_SCORE || Math.abs(y) >= Board.WIN_SCORE) continue;
+                            squares += (y - a * x - b) * (y - a * x - b);
+                        }
+                        out.printf(Locale.ROOT, "%d %d %d %.4f %.3f %.3f%n", phase, depth, shallow, a, b, Math.sqrt(squares / (n - 2)));
+                        written++;
+                    }
+                }
+            }
+        }
+        System.out.println("Wrote " + written + " fits from " + records.size() + " positions to " + fileName(width));
+    }
+}
+
+/**
+ * A search that chooseMove can drive one iteration at a time. startMove and
+ * endMove bracket all the iterations spent on one move.
+ */
+interface Searcher {
+    int INFINITY = Integer.MAX_VALUE;
+
+    /**
+     * Searches b with color to move inside the window (alpha, beta) and returns
+     * a fail-soft score: at most alpha if every move failed low, at least beta
+     * on a cutoff. The best move is only reliable for a score inside the window.
+     */
+    int search(Board b, byte color, int depth, int alpha, int beta);
+
+    default int search(Board b, byte color, int depth) {
+        return search(b, color, depth, -INFINITY, INFINITY);
+    }
+
+    Position bestMove();
+
+    String principalVariation();
+
+    // A snapshot of the counters, summed over every thread and every search so far.
+    SearchStats stats();
+
+    // The move ordering statistics of the search, or null if it has none to report.
+    default MoveOrdering ordering() {
+        return null;
+    }
+
+    default void startMove(Board b, byte color, int depth) {
+    }
+
+    /**
+     * Makes searches throw SearchAborted, leaving their board part way through
+     * the search, once the clock passes deadline. Long.MAX_VALUE for none.
+     */
+    void setDeadline(long deadline);
+
+    // Multi-ProbCut fits for later searches to prune with, or null for none.
+    void setProbCut(ProbCut probCut);
+
+    // Whether later searches order moves beyond the hash move; see MoveOrdering.enabled.
+    void setOrdering(boolean enabled);
+
+    default void endMove() {
+    }
+}
+
+/**
+ * Depth-limited negamax over a single board using makeMove/undoMove. Move lists
+ * and the principal variation table are preallocated per ply, so apart from
+ * growing them the first time a ply is reached the search allocates nothing.
+ * Scores are from the point of view of the side to move.
+ */
+class NegamaxSearch implements Searcher {
+    public static final int PASS = -1;
+
+    private final int width;
+    private final int[][] moveLists;
+    private final int[][] pv;
+    private final int[] pvLength;
+
+    private final TranspositionTable table;
+    private Board board;
+    private boolean atRoot;
+    private int rootHint = PASS;
+    private long rootHash;
+    private SplitPoint watch;
+    private long deadline = Long.MAX_VALUE;
+    private long nodeLimit = Long.MAX_VALUE;
+    public final SearchStats stats = new SearchStats();
+    public final MoveOrdering ordering;
+    // Multi-ProbCut fits, or null to search without them.
+    public ProbCut probCut;
+    // The shallow searches for probCut, made once since negamax must not allocate.
+    private final ProbCut.Probe probe = (color, ply, depth, alpha, beta) -> negamax(color, depth, ply, alpha, beta);
+
+    public NegamaxSearch(int width, TranspositionTable table) {
+        this.width = width;
+        this.table = table;
+        ordering = new MoveOrdering(width, stats);
+        int maxPly = 2 * width * width + 1;
+        moveLists = new int[maxPly][];
+        pv = new int[maxPly][];
+        pvLength = new int[maxPly];
+    }
+
+    /**
+     * Searches b (left unchanged on return) to the given depth with color to
+     * move and returns the score inside (alpha, beta). The best move and principal variation are
+     * available afterwards from bestMove and principalVariation.
+     */
+    public int search(Board b, byte color, int depth, int alpha, int beta) {
+        board = b;
+        atRoot = true;
+        watch = SplitPoint.until(deadline);
+        long key = b.hash ^ Zobrist.side(color);
+        if (rootHash != key) rootHint = PASS;
+        else if (pvLength[0] > 0) rootHint = pv[0][0];
+        rootHash = key;
+        return negamax(color, depth, 0, alpha, beta);
+    }
+
+    /**
+     * Searches the subtree below b inside the window (alpha, beta) on behalf of a
+     * parallel search. Throws SearchAborted, leaving b part way through the
+     * search, as soon as watch or one of its parents has been cut off.
+     */
+    public int search(Board b, byte color, int depth, int alpha, int beta, SplitPoint watch) {
+        board = b;
+        atRoot = false;
+        this.watch = watch;
+        return negamax(color, depth, 0, alpha, beta);
+    }
+
+    private int negamax(byte color, int depth, int ply, int alpha, int beta) {
+        long nodes = ++stats.nodes;
+        pvLength[ply] = ply;
+        if (moveLists[ply] == null) {
+            moveLists[ply] = new int[width * width];
+            pv[ply] = new int[pv.length];
+        }
+        if ((nodes & 1023) == 0 && (watch != null && watch.aborted() || nodes >= nodeLimit)) throw SearchAborted.INSTANCE;
+        if (depth <= 0) {
+            stats.evaluations++;
+            return board.getWeightFor(color);
+        }
+
+        long key = board.symmetryKey(color, depth);
+        int symmetry = board.symmetry;
+        int hashMove = 0;
+        if (table != null) {
+            long entry = table.probe(key);
+            stats.hashProbes++;
+            if (entry != 0) {
+                stats.hashHits++;
+                hashMove = Symmetry.fromCanonical(TranspositionTable.move(entry), symmetry, width);
+                if ((ply > 0 || !atRoot) && TranspositionTable.depth(entry) >= depth) {
+                    int score = TranspositionTable.score(entry);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER && score >= beta)
+                            || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+        }
+        if (hashMove == 0 && ply == 0 && atRoot && rootHint != PASS) {
+            hashMove = TranspositionTable.encodeMove(rootHint / width, rootHint % width);
+        }
+        if (probCut != null && ply > 0 && depth >= ProbCut.MIN_DEPTH) {
+            int cut = probCut.test(board, color, ply, depth, alpha, beta, probe);
+            // The shallow searches ran at this ply and left their own principal variation here.
+            pvLength[ply] = ply;
+            if (cut != 0) {
+                stats.probCuts++;
+                return cut > 0 ? beta : alpha;
+            }
+        }
+
+        int[] moves = moveLists[ply];
+        int count = board.generateMoves(color, moves);
+        byte other = (byte) (color ^ 3);
+
+        if (count == 0) {
+            if (!board.canMove(other)) {
+                stats.evaluations++;
+                return board.getWeightFor(color);
+            }
+            int score = -negamax(other, depth - 1, ply + 1, -beta, -alpha);
+            pv[ply][ply] = PASS;
+            System.arraycopy(pv[ply + 1], ply + 1, pv[ply], ply + 1, pvLength[ply + 1] - ply - 1);
+            pvLength[ply] = pvLength[ply + 1];
+            return score;
+        }
+
+        int hashSquare = hashMove == 0 ? -1 : TranspositionTable.moveX(hashMove) * width + TranspositionTable.moveY(hashMove);
+        boolean shallow = ordering.enabled && depth >= MoveOrdering.SHALLOW_DEPTH && count > 1;
+        if (shallow) {
+            double[] keys = ordering.keys(ply);
+            for (int i = 0; i < count; i++) {
+                board.makeMove(moves[i], color);
+                keys[i] = -negamax(other, depth - 1 - MoveOrdering.SHALLOW_REDUCTION, ply + 1, -INFINITY, INFINITY);
+                board.undoMove();
+            }
+        }
+        ordering.order(moves, count, ply, color, hashSquare, shallow);
+
+        int alphaOrig = alpha;
+        int best = -INFINITY;
+        int bestMove = 0;
+        for (int i = 0; i < count; i++) {
+            board.makeMove(moves[i], color);
+            int score;
+            if (i == 0) {
+                score = -negamax(other, depth - 1, ply + 1, -beta, -alpha);
+            } else {
+                // Principal variation search: prove the move is no better than alpha, and only search it fully if not.
+                score = -negamax(other, depth - 1, ply + 1, -alpha - 1, -alpha);
+                if (score > alpha && score < beta) score = -negamax(other, depth - 1, ply + 1, -beta, -alpha);
+            }
+            board.undoMove();
+
+            if (score > best) {
+                best = score;
+                bestMove = TranspositionTable.encodeMove(moves[i] / width, moves[i] % width);
+                if (score > alpha) {
+                    alpha = score;
+                    pv[ply][ply] = moves[i];
+                    System.arraycopy(pv[ply + 1], ply + 1, pv[ply], ply + 1, pvLength[ply + 1] - ply - 1);
+                    pvLength[ply] = pvLength[ply + 1];
+                }
+                if (alpha >= beta) {
+                    ordering.cutoff(moves[i], ply, color, depth, i);
+                    break;
+                }
+            }
+        }
+
+        if (table != null) {
+            int bound = best <= alphaOrig ? TranspositionTable.UPPER
+                    : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            table.store(key, depth, bound, best, Symmetry.toCanonical(bestMove, symmetry, width));
+        }
+        return best;
+    }
+
+    public SearchStats stats() {
+        return stats.copy();
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public void setProbCut(ProbCut probCut) {
+        this.probCut = probCut;
+    }
+
+    public void setOrdering(boolean enabled) {
+        ordering.enabled = enabled;
+    }
+
+    // Makes searches throw SearchAborted like a deadline once stats.nodes reaches limit. Long.MAX_VALUE for none.
+    public void setNodeLimit(long limit) {
+        nodeLimit = limit;
+    }
+
+    public MoveOrdering ordering() {
+        return ordering;
+    }
+
+    public Position bestMove() {
+        if (pvLength[0] == 0) return null;
+        return new Position(pv[0][0] / width, pv[0][0] % width);
+    }
+
+    public String principalVariation() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < pvLength[0]; i++) {
+            if (i > 0) s.append(' ');
+            int square = pv[0][i];
+            s.append(square == PASS ? "--" : new Position(square / width, square % width).toString());
+        }
+        return s.toString();
+    }
+}
+
+/**
+ * Unwinds a search that has been told to stop. A single preallocated instance
+ * without a stack trace, so throwing it costs nothing.
+ */
+class SearchAborted extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    public static final SearchAborted INSTANCE = new SearchAborted();
+
+    private SearchAborted() {
+        super(null, null, false, false);
+    }
+}
+
+/**
+ * The window shared by the siblings of one node while they are searched in
+ * parallel. Alpha is raised through an atomic so that siblings starting later
+ * see the best bound found so far, and a beta cutoff stops every search below.
+ */
+class SplitPoint {
+    public final SplitPoint parent;
+    public final int beta;
+    private final AtomicInteger alpha;
+    private volatile boolean cutoff;
+    private final long deadline;
+
+    private int best;
+    private int bestMove;
+
+    public SplitPoint(SplitPoint parent, int alpha, int beta, int best, int bestMove) {
+        this(parent, alpha, beta, best, bestMove, Long.MAX_VALUE);
+    }
+
+    private SplitPoint(SplitPoint parent, int alpha, int beta, int best, int bestMove, long deadline) {
+        this.parent = parent;
+        this.beta = beta;
+        this.alpha = new AtomicInteger(alpha);
+        this.best = best;
+        this.bestMove = bestMove;
+        this.deadline = deadline;
+    }
+
+    // A root for a whole search that stops it once the clock passes deadline, or null for no deadline.
+    public static SplitPoint until(long deadline) {
+        if (deadline == Long.MAX_VALUE) return null;
+        return new SplitPoint(null, -Searcher.INFINITY, Searcher.INFINITY, -Searcher.INFINITY, 0, deadline);
+    }
+
+    public int alpha() {
+        return alpha.get();
+    }
+
+    // Stops every search watching this split point, as if a sibling had failed high.
+    public void stop() {
+        cutoff = true;
+    }
+
+    public boolean aborted() {
+        for (SplitPoint s = this; s != null; s = s.parent) {
+            if (s.cutoff) return true;
+            if (s.deadline != Long.MAX_VALUE && System.currentTimeMillis() > s.deadline) {
+                s.cutoff = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void update(int score, int move) {
+        if (score > best) {
+            best = score;
+            bestMove = move;
+        }
+        int current;
+        while (score > (current = alpha.get())) {
+            if (alpha.compareAndSet(current, score)) break;
+        }
+        if (score >= beta) cutoff = true;
+    }
+
+    public synchronized int best() {
+        return best;
+    }
+
+    public synchronized int bestMove() {
+        return bestMove;
+    }
+}
+
+/**
+ * Young Brothers Wait search on a fork-join pool. At every node with at least
+ * SPLIT_DEPTH plies left the first move is searched on the current thread to
+ * establish a bound, then the remaining siblings are forked as tasks on their
+ * own board copies and share alpha through a SplitPoint. Nodes closer to the
+ * leaves are searched serially by a per-thread NegamaxSearch.
+ */
+class ParallelSearch implements Searcher {
+    public static final int SPLIT_DEPTH = 4;
+
+    private final int width;
+    private final TranspositionTable table;
+    private final ForkJoinPool pool;
+    private final ConcurrentLinkedQueue<NegamaxSearch> searchers = new ConcurrentLinkedQueue<NegamaxSearch>();
+    private final ThreadLocal<NegamaxSearch> serial;
+
+    private int bestMove = NegamaxSearch.PASS;
+    private Board root;
+    private byte rootColor;
+    private long deadline = Long.MAX_VALUE;
+    private volatile ProbCut probCut;
+    private volatile boolean ordered = true;
+
+    public ParallelSearch(int width, TranspositionTable table, int threads) {
+        this.width = width;
+        this.table = table;
+        pool = new ForkJoinPool(threads);
+        serial = ThreadLocal.withInitial(() -> {
+            NegamaxSearch s = new NegamaxSearch(width, table);
+            s.probCut = probCut;
+            s.setOrdering(ordered);
+            searchers.add(s);
+            return s;
+        });
+    }
+
+    public int threads() {
+        return pool.getParallelism();
+    }
+
+    public SearchStats stats() {
+        SearchStats total = new SearchStats();
+        for (NegamaxSearch s : searchers) total.add(s.stats);
+        return total;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public void setProbCut(ProbCut probCut) {
+        this.probCut = probCut;
+        for (NegamaxSearch s : searchers) s.probCut = probCut;
+    }
+
+    public void setOrdering(boolean enabled) {
+        ordered = enabled;
+        for (NegamaxSearch s : searchers) s.setOrdering(enabled);
+    }
+
+    public int search(Board b, byte color, int depth, int alpha, int beta) {
+        root = b;
+        rootColor = color;
+        return pool.invoke(new RecursiveTask<Integer>() {
+            protected Integer compute() {
+                if (depth < SPLIT_DEPTH) {
+                    NegamaxSearch s = serial.get();
+                    int score = s.search(b, color, depth, alpha, beta);
+                    Position p = s.bestMove();
+                    if (p != null) bestMove = p.x * width + p.y;
+                    return score;
+                }
+                return ybw(b, color, depth, 0, alpha, beta, SplitPoint.until(deadline));
+            }
+        });
+    }
+
+    private int ybw(Board board, byte color, int depth, int ply, int alpha, int beta, SplitPoint watch) {
+        NegamaxSearch s = serial.get();
+        if (depth < SPLIT_DEPTH) return s.search(board, color, depth, alpha, beta, watch);
+        if (watch != null && watch.aborted()) throw SearchAborted.INSTANCE;
+        s.stats.nodes++;
+
+        long key = board.symmetryKey(color, depth);
+        int symmetry = board.symmetry;
+        int hashMove = ply == 0 && bestMove != NegamaxSearch.PASS
+                ? TranspositionTable.encodeMove(bestMove / width, bestMove % width) : 0;
+        if (table != null) {
+            long entry = table.probe(key);
+            s.stats.hashProbes++;
+            if (entry != 0) {
+                s.stats.hashHits++;
+                hashMove = Symmetry.fromCanonical(TranspositionTable.move(entry), symmetry, width);
+                if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                    int score = TranspositionTable.score(entry);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER && score >= beta)
+                            || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+        }
+
+        int[] moves = new int[width * width];
+        int count = board.generateMoves(color, moves);
+        byte other = (byte) (color ^ 3);
+        if (count == 0) {
+            if (!board.canMove(other)) return board.getWeightFor(color);
+            return -ybw(board, other, depth - 1, ply + 1, -beta, -alpha, watch);
+        }
+        if (hashMove != 0) {
+            int square = TranspositionTable.moveX(hashMove) * width + TranspositionTable.moveY(hashMove);
+            for (int i = 1; i < count; i++) {
+                if (moves[i] == square) {
+                    moves[i] = moves[0];
+                    moves[0] = square;
+                    break;
+                }
+            }
+        }
+
+        int alphaOrig = alpha;
+        board.makeMove(moves[0], color);
+        int best = -ybw(board, other, depth - 1, ply + 1, -beta, -alpha, watch);
+        board.undoMove();
+        int move = moves[0];
+        if (best > alpha) alpha = best;
+
+        if (alpha < beta && count > 1) {
+            SplitPoint sp = new SplitPoint(watch, alpha, beta, best, moves[0]);
+            ArrayList<Sibling> siblings = new ArrayList<Sibling>(count - 1);
+            for (int i = 1; i < count; i++) {
+                Board child = board.copy();
+                child.makeMove(moves[i], color);
+                siblings.add(new Sibling(child, other, depth - 1, ply + 1, moves[i], sp));
+            }
+            ForkJoinTask.invokeAll(siblings);
+            if (watch != null && watch.aborted()) throw SearchAborted.INSTANCE;
+            best = sp.best();
+            move = sp.bestMove();
+        }
+
+        if (ply == 0) bestMove = move;
+        if (table != null) {
+            int bound = best <= alphaOrig ? TranspositionTable.UPPER
+                    : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            table.store(key, depth, bound, best, Symmetry.toCanonical(TranspositionTable.encodeMove(move / width, move % width), symmetry, width));
+        }
+        return best;
+    }
+
+    private class Sibling extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Board board;
+        private final byte color;
+        private final int depth;
+        private final int ply;
+        private final int move;
+        private final SplitPoint sp;
+
+        Sibling(Board board, byte color, int depth, int ply, int move, SplitPoint sp) {
+            this.board = board;
+            this.color = color;
+            this.depth = depth;
+            this.ply = ply;
+            this.move = move;
+            this.sp = sp;
+        }
+
+        protected void compute() {
+            if (sp.aborted()) return;
+            try {
+                int score = -ybw(board, color, depth, ply, -sp.beta, -sp.alpha(), sp);
+                sp.update(score, move);
+            } catch (SearchAborted e) {
+                // A sibling cut off this node or an ancestor; the result is not needed.
+            }
+        }
+    }
+
+    public Position bestMove() {
+        if (bestMove == NegamaxSearch.PASS) return null;
+        return new Position(bestMove / width, bestMove % width);
+    }
+
+    public String principalVariation() {
+        if (table != null && root != null) return table.principalVariation(root, rootColor, width * width);
+        Position p = bestMove();
+        return p == null ? "" : p.toString();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Prints the time and speedup of fixed-depth searches from a few early
+     * positions for 1, 2, 4, ... up to maxThreads workers, next to the plain
+     * single-threaded NegamaxSearch.
+     */
+    public static void speedupReport(int size, byte engine, int depth, int maxThreads, boolean ordered) {
+        Board[] positions = new Board[4];
+        byte[] colors = new byte[positions.length];
+        Random r = new Random(1);
+        for (int i = 0; i < positions.length; i++) {
+            Board b = Board.create(size, engine);
+            byte color = Board.DARK;
+            for (int ply = 0; ply < 2 * i + 4; ply++) {
+                ArrayList<Position> moves = b.possibleMoves(color);
+                if (moves.isEmpty()) break;
+                b.moveOn(moves.get(r.nextInt(moves.size())), color);
+                color ^= 3;
+            }
+            positions[i] = b;
+            colors[i] = color;
+        }
+
+        long start = System.currentTimeMillis();
+        long nodes = 0;
+        for (int i = 0; i < positions.length; i++) {
+            NegamaxSearch s = new NegamaxSearch(size, null);
+            s.setOrdering(ordered);
+            s.search(positions[i].copy(), colors[i], depth);
+            nodes += s.stats.nodes;
+        }
+        System.out.println("serial: " + (System.currentTimeMillis() - start) + " ms, " + nodes + " nodes");
+
+        long base = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            ParallelSearch p = new ParallelSearch(size, null, threads);
+            p.setOrdering(ordered);
+            start = System.currentTimeMillis();
+            for (int i = 0; i < positions.length; i++) p.search(positions[i].copy(), colors[i], depth);
+            long taken = Math.max(1, System.currentTimeMillis() - start);
+            p.shutdown();
+            if (threads == 1) base = taken;
+            System.out.printf(Locale.ROOT, "threads %d: %d ms, %d nodes, speedup %.2f%n", threads, taken, p.stats().nodes, base / (double) taken);
+            if (threads == maxThreads) break;
+        }
+    }
+}
+
+/**
+ * Lazy SMP: the calling thread runs the normal iterative deepening search while
+ * helper threads search the same root at staggered depths on their own board
+ * copies. The threads never talk to each other directly; helpers only make
+ * the main search faster by filling the shared transposition table. With no
+ * helpers this is exactly NegamaxSearch.
+ */
+class LazySmpSearch implements Searcher {
+    private final NegamaxSearch main;
+    private final NegamaxSearch[] helpers;
+    private final ExecutorService pool;
+    private final ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+    private SplitPoint stop;
+
+    public LazySmpSearch(int width, TranspositionTable table, int threads) {
+        main = new NegamaxSearch(width, table);
+        helpers = new NegamaxSearch[threads - 1];
+        for (int i = 0; i < helpers.length; i++) helpers[i] = new NegamaxSearch(width, table);
+        pool = helpers.length == 0 ? null : Executors.newFixedThreadPool(helpers.length, r -> {
+            Thread t = new Thread(r, "lazy-smp-helper");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts the helpers on b, which the caller must not change until endMove.
+     * Helper i begins one or two plies beyond startDepth and keeps deepening.
+     */
+    public void startMove(Board b, byte color, int startDepth) {
+        endMove();
+        stop = new SplitPoint(null, 0, 0, 0, 0);
+        final SplitPoint token = stop;
+        int empties = b.WIDTH * b.WIDTH - b.countDiscs(Board.DARK) - b.countDiscs(Board.LIGHT);
+        for (int i = 0; i < helpers.length; i++) {
+            final NegamaxSearch s = helpers[i];
+            s.ordering.newSearch();
+            final int first = startDepth + 1 + (i & 1);
+            final Board copy = b.copy();
+            running.add(pool.submit(() -> {
+                try {
+                    for (int depth = first; depth <= empties && !token.aborted(); depth++) {
+                        s.search(copy, color, depth, -INFINITY, INFINITY, token);
+                    }
+                } catch (SearchAborted e) {
+                    // Stopped by the main thread.
+                }
+            }));
+        }
+    }
+
+    public int search(Board b, byte color, int depth, int alpha, int beta) {
+        return main.search(b, color, depth, alpha, beta);
+    }
+
+    public void setDeadline(long deadline) {
+        main.setDeadline(deadline);
+    }
+
+    public void setProbCut(ProbCut probCut) {
+        main.probCut = probCut;
+        for (NegamaxSearch h : helpers) h.probCut = probCut;
+    }
+
+    public void setOrdering(boolean enabled) {
+        main.setOrdering(enabled);
+        for (NegamaxSearch h : helpers) h.setOrdering(enabled);
+    }
+
+    /**
+     * Stops the helpers and waits for them to return.
+     */
+    public void endMove() {
+        if (stop != null) stop.stop();
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (Exception e) {
+            }
+        }
+        running.clear();
+    }
+
+    public SearchStats stats() {
+        SearchStats total = main.stats();
+        for (NegamaxSearch s : helpers) total.add(s.stats);
+        return total;
+    }
+
+    public MoveOrdering ordering() {
+        return main.ordering;
+    }
+
+    public Position bestMove() {
+        return main.bestMove();
+    }
+
+    public String principalVariation() {
+        return main.principalVariation();
+    }
+}
+
+/**
+ * Exact solver for the last empty squares. Scores are final disc differentials
+ * (own discs minus opponent discs, empty squares counted for nobody) from the
+ * point of view of the side to move.
+ *
+ * Empty squares are kept in a linked list; moves in quadrants holding an odd
+ * number of empties are tried first (parity), and with more than
+ * FASTEST_FIRST_EMPTIES left moves are sorted by the opponent's reply count
+ * (fastest first). The last three empties have dedicated routines that play
+ * straight off the list without generating moves.
+ */
+class EndgameSolver {
+    public static final int FASTEST_FIRST_EMPTIES = 7;
+
+    private final int width;
+    private final int head;
+    private final int[] next;
+    private final int[] prev;
+    private final int[] quadrant;
+    private final int[][] moveLists;
+    private final int[][] keyLists;
+
+    private Board board;
+    private int parity;
+    private int empties;
+    private int darkDiff;
+    private int bestMove;
+    public long nodes;
+    public long stabilityCutoffs;
+
+    public EndgameSolver(int width) {
+        this.width = width;
+        head = width * width;
+        next = new int[head + 1];
+        prev = new int[head + 1];
+        quadrant = new int[head];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < width; y++) {
+                quadrant[x * width + y] = (x < width / 2 ? 0 : 1) | (y < width / 2 ? 0 : 2);
+            }
+        }
+        moveLists = new int[head + 1][];
+        keyLists = new int[head + 1][];
+    }
+
+    /**
+     * Solves b for color to move and returns the exact final disc differential.
+     * With winLossDraw set, only the sign of the result is exact: the search
+     * runs with a (-1, 1) window, which proves a win, loss or draw much faster.
+     */
+    public int solve(Board b, byte color, boolean winLossDraw) {
+        board = b;
+        next[head] = head;
+        prev[head] = head;
+        empties = 0;
+        parity = 0;
+        for (int square = 0; square < head; square++) {
+            if (b.get(square / width, square % width) != Board.EMPTY) continue;
+            next[square] = head;
+            prev[square] = prev[head];
+            next[prev[head]] = square;
+            prev[head] = square;
+            empties++;
+            parity ^= 1 << quadrant[square];
+        }
+        darkDiff = b.countDiscs(Board.DARK) - b.countDiscs(Board.LIGHT);
+        bestMove = NegamaxSearch.PASS;
+        int limit = head + 1;
+        return winLossDraw ? solve(color, -1, 1, false, 0) : solve(color, -limit, limit, false, 0);
+    }
+
+    public Position bestMove() {
+        if (bestMove == NegamaxSearch.PASS) return null;
+        return new Position(bestMove / width, bestMove % width);
+    }
+
+    private int diff(byte color) {
+        return color == Board.DARK ? darkDiff : -darkDiff;
+    }
+
+    private void play(int square, int flips, byte color) {
+        board.makeMove(square, color);
+        darkDiff += color == Board.DARK ? 2 * flips + 1 : -2 * flips - 1;
+        next[prev[square]] = next[square];
+        prev[next[square]] = prev[square];
+        parity ^= 1 << quadrant[square];
+        empties--;
+    }
+
+    private void unplay(int square, int flips, byte color) {
+        board.undoMove();
+        darkDiff -= color == Board.DARK ? 2 * flips + 1 : -2 * flips - 1;
+        next[prev[square]] = square;
+        prev[next[square]] = square;
+        parity ^= 1 << quadrant[square];
+        empties++;
+    }
+
+    private int solve(byte color, int alpha, int beta, boolean passed, int ply) {
+        nodes++;
+        if (ply > 0) {
+            if (empties == 1) return solve1(color, next[head]);
+            if (empties == 2) return solve2(color, alpha, beta, next[head], next[next[head]], false);
+            if (empties == 3) return solve3(color, alpha, beta, next[head], next[next[head]], next[next[next[head]]]);
+        }
+
+        byte other = (byte) (color ^ 3);
+        if (ply > 0) {
+            // Stability cutoffs: every square but other's stable discs going to color is the best it
+            // can do, and the reverse the worst. The disc counts say when stability could possibly cut.
+            if (alpha >= head - 2 * board.countDiscs(other)) {
+                int max = head - 2 * board.stableDiscs(other);
+                if (max <= alpha) {
+                    stabilityCutoffs++;
+                    return max;
+                }
+            }
+            if (beta <= 2 * board.countDiscs(color) - head) {
+                int min = 2 * board.stableDiscs(color) - head;
+                if (min >= beta) {
+                    stabilityCutoffs++;
+                    return min;
+                }
+            }
+        }
+        if (moveLists[ply] == null) {
+            moveLists[ply] = new int[head];
+            keyLists[ply] = new int[head];
+        }
+        int[] moves = moveLists[ply];
+        int[] keys = keyLists[ply];
+        int count = 0;
+        boolean sortByMobility = empties > FASTEST_FIRST_EMPTIES;
+        for (int square = next[head]; square != head; square = next[square]) {
+            int flips = board.countFlips(square, color);
+            if (flips == 0) continue;
+            int key = (parity & (1 << quadrant[square])) != 0 ? 0 : 1;
+            if (sortByMobility) {
+                board.makeMove(square, color);
+                key += board.countMoves(other) * 2;
+                board.undoMove();
+            }
+            // insertion sort, stable so squares keep list order within a key
+            int i = count++;
+            while (i > 0 && keys[i - 1] > key) {
+                moves[i] = moves[i - 1];
+                keys[i] = keys[i - 1];
+                i--;
+            }
+            moves[i] = square;
+            keys[i] = key;
+        }
+
+        if (count == 0) {
+            if (passed) return diff(color);
+            return -solve(other, -beta, -alpha, true, ply + 1);
+        }
+
+        int best = -head - 1;
+        for (int i = 0; i < count; i++) {
+            int square = moves[i];
+            int flips = board.countFlips(square, color);
+            play(square, flips, color);
+            int score = -solve(other, -beta, -alpha, false, ply + 1);
+            unplay(square, flips, color);
+            if (score > best) {
+                best = score;
+                if (ply == 0) bestMove = square;
+                if (score > alpha) alpha = score;
+                if (alpha >= beta) break;
+            }
+        }
+        return best;
+    }
+
+    private int solve1(byte color, int square) {
+        nodes++;
+        int flips = board.countFlips(square, color);
+        if (flips > 0) return diff(color) + 2 * flips + 1;
+        flips = board.countFlips(square, (byte) (color ^ 3));
+        if (flips > 0) return diff(color) - 2 * flips - 1;
+        return diff(color);
+    }
+
+    private int solve2(byte color, int alpha, int beta, int a, int b, boolean passed) {
+        nodes++;
+        byte other = (byte) (color ^ 3);
+        int best = -head - 1;
+        int flips = board.countFlips(a, color);
+        if (flips > 0) {
+            play(a, flips, color);
+            best = -solve1(other, b);
+            unplay(a, flips, color);
+            if (best >= beta) return best;
+        }
+        flips = board.countFlips(b, color);
+        if (flips > 0) {
+            play(b, flips, color);
+            int score = -solve1(other, a);
+            unplay(b, flips, color);
+            if (score > best) best = score;
+        }
+        if (best == -head - 1) {
+            if (passed) return diff(color);
+            return -solve2(other, -beta, -alpha, a, b, true);
+        }
+        return best;
+    }
+
+    private int solve3(byte color, int alpha, int beta, int a, int b, int c) {
+        nodes++;
+        // Parity: a square alone in its quadrant goes first.
+        if ((parity & (1 << quadrant[a])) == 0) {
+            if ((parity & (1 << quadrant[b])) != 0) {
+                int t = a; a = b; b = t;
+            } else if ((parity & (1 << quadrant[c])) != 0) {
+                int t = a; a = c; c = t;
+            }
+        }
+        byte other = (byte) (color ^ 3);
+        int best = solve3Try(color, other, alpha, beta, a, b, c);
+        if (best >= beta) return best;
+        if (best > alpha) alpha = best;
+        int score = solve3Try(color, other, alpha, beta, b, a, c);
+        if (score > best) best = score;
+        if (best >= beta) return best;
+        if (best > alpha) alpha = best;
+        score = solve3Try(color, other, alpha, beta, c, a, b);
+        if (score > best) best = score;
+        if (best != -head - 1) return best;
+
+        // color has to pass; if other cannot move either the game is over
+        best = -head - 1;
+        int passAlpha = -beta;
+        int passBeta = -alpha;
+        score = solve3Try(other, color, passAlpha, passBeta, a, b, c);
+        if (score > best) best = score;
+        if (best < passBeta) {
+            if (best > passAlpha) passAlpha = best;
+            score = solve3Try(other, color, passAlpha, passBeta, b, a, c);
+            if (score > best) best = score;
+        }
+        if (best < passBeta) {
+            if (best > passAlpha) passAlpha = best;
+            score = solve3Try(other, color, passAlpha, passBeta, c, a, b);
+            if (score > best) best = score;
+        }
+        if (best == -head - 1) return diff(color);
+        return -best;
+    }
+
+    // Score for color playing square first with the two others left, or "no move" if illegal.
+    private int solve3Try(byte color, byte other, int alpha, int beta, int square, int rest1, int rest2) {
+        int flips = board.countFlips(square, color);
+        if (flips == 0) return -head - 1;
+        play(square, flips, color);
+        int score = -solve2(other, -beta, -alpha, rest1, rest2, false);
+        unplay(square, flips, color);
+        return score;
+    }
+}
+
+/**
+ * Counts the positions reachable in exactly depth moves, to check the move
+ * generators against each other and time them without any evaluation. A side
+ * that cannot move passes as it does in play, without using up a move, and a
+ * finished game counts as one position. The last move is not made: its
+ * positions are counted straight from the move list.
+ */
+class Perft {
+    private final int[][] moveLists;
+
+    public Perft(int width) {
+        moveLists = new int[2 * width * width + 2][];
+        for (int i = 0; i < moveLists.length; i++) moveLists[i] = new int[width * width];
+    }
+
+    public long count(Board b, byte color, int depth) {
+        return count(b, color, depth, 0);
+    }
+
+    private long count(Board b, byte color, int depth, int ply) {
+        if (depth == 0) return 1;
+        int[] moves = moveLists[ply];
+        int n = b.generateMoves(color, moves);
+        byte other = (byte) (color ^ 3);
+        if (n == 0) {
+            if (!b.canMove(other)) return 1;
+            return count(b, other, depth, ply + 1);
+        }
+        if (depth == 1) return n;
+
+        long nodes = 0;
+        for (int i = 0; i < n; i++) {
+            b.makeMove(moves[i], color);
+            nodes += count(b, other, depth - 1, ply + 1);
+            b.undoMove();
+        }
+        return nodes;
+    }
+
+    /**
+     * Counts with the moves at the root shared out between threads, each on its
+     * own copy of b.
+     */
+    public static long parallelCount(Board b, byte color, int depth, int threads) throws Exception {
+        int width = b.WIDTH;
+        if (depth < 2 || threads < 2) return new Perft(width).count(b, color, depth);
+        if (!b.canMove(color)) {
+            color ^= 3;
+            if (!b.canMove(color)) return 1;
+        }
+
+        int[] moves = new int[width * width];
+        int n = b.generateMoves(color, moves);
+        final byte other = (byte) (color ^ 3);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ThreadLocal<Perft> perft = ThreadLocal.withInitial(() -> new Perft(width));
+        try {
+            ArrayList<Future<Long>> counts = new ArrayList<Future<Long>>(n);
+            for (int i = 0; i < n; i++) {
+                final Board child = b.copy();
+                child.makeMove(moves[i], color);
+                counts.add(pool.submit(() -> perft.get().count(child, other, depth - 1)));
+            }
+            long nodes = 0;
+            for (Future<Long> f : counts) nodes += f.get();
+            return nodes;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Prints the count and nodes per second for every board engine that
+     * supports size, from the start position or after the given moves.
+     */
+    public static void report(int size, String moves, int depth, int threads) throws Exception {
+        byte[] engines = {Board.ARRAY_ENGINE, Board.BIT_ENGINE, Board.PACKED_ENGINE};
+        ArrayList<Class<?>> done = new ArrayList<Class<?>>();
+        for (int e = 0; e < engines.length; e++) {
+            Board b = Board.create(size, engines[e]);
+            // Board.create falls back to another engine where one does not support the size.
+            if (done.contains(b.getClass())) continue;
+            done.add(b.getClass());
+            byte color = replay(b, moves);
+
+            long start = System.nanoTime();
+            long nodes = parallelCount(b, color, depth, threads);
+            long taken = Math.max(1, System.nanoTime() - start);
+            System.out.printf(Locale.ROOT, "%s: perft(%d) = %d in %d ms, %.0f nodes/s%n",
+                    b.getClass().getSimpleName(), depth, nodes, taken / 1000000, nodes * 1e9 / taken);
+        }
+    }
+
+    // Plays moves, given as space separated squares, on b and returns the color to move next.
+    static byte replay(Board b, String moves) {
+        byte color = Board.DARK;
+        if (moves != null) {
+            for (String m : moves.trim().split("\\s+")) {
+                if (m.isEmpty()) continue;
+                if (!b.canMove(color)) color ^= 3;
+                Position p = new Position(m);
+                if (!b.isValidMove(p.x, p.y, color)) throw new IllegalArgumentException("Illegal move: " + m);
+                b.moveOn(p, color);
+                color ^= 3;
+            }
+        }
+        if (!b.canMove(color)) color ^= 3;
+        return color;
+    }
+}
+
+/**
+ * The eight symmetries of the square board. Transform t transposes (x, y) if
+ * bit 2 is set, then mirrors x if bit 0 is set and y if bit 1 is set. A
+ * position and its reflections share one canonical key, the smallest of their
+ * eight Zobrist keys.
+ */
+class Symmetry {
+    public static final int COUNT = 8;
+
+    // Beyond this many discs reflected transpositions are too rare to pay for canonical keys in the search.
+    public static final int MAX_DISCS = 16;
+    // Nearer the leaves the eight transforms cost more than a shared entry saves.
+    public static final int MIN_DEPTH = 3;
+
+    public static int transform(int t, int x, int y, int width) {
+        if ((t & 4) != 0) {
+            int s = x;
+            x = y;
+            y = s;
+        }
+        if ((t & 1) != 0) x = width - 1 - x;
+        if ((t & 2) != 0) y = width - 1 - y;
+        return x * width + y;
+    }
+
+    // The transform that undoes t: after a transpose the two mirrors swap axes.
+    public static int inverse(int t) {
+        return (t & 4) == 0 ? t : 4 | (t & 1) << 1 | (t & 2) >> 1;
+    }
+
+    // Zobrist key of b as seen through transform t.
+    public static long hash(Board b, int t) {
+        long h = 0;
+        for (int x = 0; x < b.WIDTH; x++) {
+            for (int y = 0; y < b.WIDTH; y++) {
+                byte c = b.get(x, y);
+                if (c == Board.EMPTY) continue;
+                int s = transform(t, x, y, b.WIDTH);
+                h ^= Zobrist.key(c, s / b.WIDTH, s % b.WIDTH);
+            }
+        }
+        return h;
+    }
+
+    // The transform that gives b its canonical key.
+    public static int canonical(Board b) {
+        int best = 0;
+        long min = b.hash;
+        for (int t = 1; t < COUNT; t++) {
+            long h = b.symmetricHash(t);
+            if (h < min) {
+                min = h;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    // Whether a per-square table for a width board is the same under every transform.
+    public static boolean invariant(int[] table, int width) {
+        for (int t = 1; t < COUNT; t++) {
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < width; y++) {
+                    if (table[transform(t, x, y, width)] != table[x * width + y]) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // A move encoded as in TranspositionTable, taken into the orientation of transform t.
+    public static int toCanonical(int move, int t, int width) {
+        if (move == 0 || t == 0) return move;
+        int square = transform(t, TranspositionTable.moveX(move), TranspositionTable.moveY(move), width);
+        return TranspositionTable.encodeMove(square / width, square % width);
+    }
+
+    // The reverse of toCanonical, for a move read back from an entry stored under t.
+    public static int fromCanonical(int move, int t, int width) {
+        return toCanonical(move, inverse(t), width);
+    }
+}
+
+/**
+ * Opening book for one board size, built offline by build. The file is a
+ * header (magic, width, count) and then entries sorted by the canonical key of
+ * the position with the side to move folded in, each followed by the move to
+ * play in the canonical orientation (x << 5 | y) and its score. The file is
+ * memory-mapped, so a lookup is a binary search straight over the mapping.
+ */
+class OpeningBook {
+    private static final int MAGIC = 0x5256424B;
+    private static final int HEADER = 12;
+    private static final int ENTRY = 16;
+
+    private final MappedByteBuffer entries;
+    private final int width;
+    private final int count;
+
+    private OpeningBook(MappedByteBuffer entries, int width, int count) {
+        this.entries = entries;
+        this.width = width;
+        this.count = count;
+    }
+
+    public static String fileName(int width) {
+        return "book" + width + ".bin";
+    }
+
+    // Maps file, or returns null if there is no such file or it is a book for another size.
+    public static OpeningBook open(String file, int width) throws IOException {
+        File f = new File(file);
+        if (!f.isFile()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER) throw new IOException("Not an opening book: " + file);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt(0) != MAGIC) throw new IOException("Not an opening book: " + file);
+            if (buf.getInt(4) != width) return null;
+            int count = buf.getInt(8);
+            if (HEADER + (long) count * ENTRY > size) throw new IOException("Truncated opening book: " + file);
+            return new OpeningBook(buf, width, count);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // The book move for color in b, or null if the position is not in the book.
+    public Position lookup(Board b, byte color) {
+        int t = Symmetry.canonical(b);
+        long key = b.symmetricHash(t) ^ Zobrist.side(color);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = entries.getLong(HEADER + mid * ENTRY);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                int move = entries.getInt(HEADER + mid * ENTRY + 8);
+                int square = Symmetry.transform(Symmetry.inverse(t), move >> 5, move & 31, width);
+                Position p = new Position(square / width, square % width);
+                return b.isValidMove(p, color) ? p : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Searches every position up to plies moves from the start to the given
+     * depth and writes the book for width to file. Reflections of a position
+     * already searched are skipped.
+     */
+    public static void build(int width, byte engine, int plies, int depth, String file) throws IOException {
+        NegamaxSearch search = new NegamaxSearch(width, new TranspositionTable(64));
+        TreeMap<Long, Long> book = new TreeMap<Long, Long>();
+        long start = System.currentTimeMillis();
+        add(book, search, Board.create(width, engine), Board.DARK, plies, depth);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(book.size());
+            for (Map.Entry<Long, Long> e : book.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        System.out.println("Wrote " + book.size() + " positions to " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void add(TreeMap<Long, Long> book, NegamaxSearch search, Board b, byte color, int plies, int depth) {
+        if (plies == 0) return;
+        if (!b.canMove(color)) {
+            color ^= 3;
+            if (!b.canMove(color)) return;
+        }
+        int t = Symmetry.canonical(b);
+        long key = b.symmetricHash(t) ^ Zobrist.side(color);
+        if (book.containsKey(key)) return;
+
+        int score = search.search(b, color, depth);
+        Position best = search.bestMove();
+        int square = Symmetry.transform(t, best.x, best.y, b.WIDTH);
+        book.put(key, (long) ((square / b.WIDTH) << 5 | square % b.WIDTH) << 32 | (score & 0xFFFFFFFFL));
+        if (book.size() % 100 == 0) System.out.println(book.size() + " positions");
+
+        for (Position p : b.possibleMoves(color)) {
+            Board child = b.copy();
+            child.moveOn(p, color);
+            add(book, search, child, (byte) (color ^ 3), plies - 1, depth);
+        }
+    }
+}
+
+class Zobrist {
+    private static final int MAX = PackedBoard.MAX_SIZE;
+
+    private static final long[] LIGHT_KEYS = new long[MAX * MAX];
+    private static final long[] DARK_KEYS = new long[MAX * MAX];
+    private static final long[] FLIP_KEYS = new long[MAX * MAX];
+    private static final long DARK_TO_MOVE;
+
+    static {
+        Random r = new Random(0x2545F4914F6CDD1DL);
+        for (int i = 0; i < MAX * MAX; i++) {
+            LIGHT_KEYS[i] = r.nextLong();
+            DARK_KEYS[i] = r.nextLong();
+            FLIP_KEYS[i] = LIGHT_KEYS[i] ^ DARK_KEYS[i];
+        }
+        DARK_TO_MOVE = r.nextLong();
+    }
+
+    public static long key(byte color, int x, int y) {
+        return color == Board.LIGHT ? LIGHT_KEYS[x * MAX + y] : DARK_KEYS[x * MAX + y];
+    }
+
+    // Key change for a disc at (x, y) turning over to the other color.
+    public static long flip(int x, int y) {
+        return FLIP_KEYS[x * MAX + y];
+    }
+
+    public static long side(byte color) {
+        return color == Board.DARK ? DARK_TO_MOVE : 0;
+    }
+
+    public static long hash(Board b) {
+        long h = 0;
+        for (int x = 0; x < b.WIDTH; x++) {
+            for (int y = 0; y < b.WIDTH; y++) {
+                byte c = b.get(x, y);
+                if (c != Board.EMPTY) h ^= key(c, x, y);
+            }
+        }
+        return h;
+    }
+}
+
+/**
+ * Preallocated transposition table. Each entry is a key and one packed data word
+ * held in parallel long arrays, grouped into buckets of two slots. A new entry
+ * replaces the matching key if present, otherwise the slot that is empty, left
+ * over from an earlier move, or searched to the lower depth.
+ *
+ * The table is shared between search threads without locking: the key slot
+ * holds key ^ data, so an entry torn by two threads writing at once no longer
+ * matches its key and simply reads as a miss.
+ *
+ * Keys come from Board.symmetryKey, so early positions share entries with
+ * their reflections and moves are stored in the canonical orientation.
+ *
+ * Data word layout: bits 0-31 score, 32-47 move, 48-55 depth,
+ * 56-57 bound, 58-62 age, 63 set for every stored entry.
+ */
+class TranspositionTable {
+    public static final int EXACT = 0;
+    public static final int LOWER = 1;
+    public static final int UPPER = 2;
+
+    private static final long USED = 1L << 63;
+
+    private final long[] keys;
+    private final long[] data;
+    private final int mask;
+    private int age;
+
+    public TranspositionTable(int megabytes) {
+        long entries = Math.max(2, ((long) megabytes << 20) / 16);
+        int size = Integer.highestOneBit((int) Math.min(entries, 1 << 30));
+        keys = new long[size];
+        data = new long[size];
+        mask = size - 1;
+    }
+
+    public void newSearch() {
+        age = (age + 1) & 31;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(data, 0);
+    }
+
+    /**
+     * Returns the data word stored for key, or 0 if there is none.
+     */
+    public long probe(long key) {
+        int i = (int) key & mask & ~1;
+        long d = data[i];
+        if (d != 0 && (keys[i] ^ d) == key) return d;
+        d = data[i + 1];
+        if (d != 0 && (keys[i + 1] ^ d) == key) return d;
+        return 0;
+    }
+
+    public void store(long key, int depth, int bound, int score, int move) {
+        int i = (int) key & mask & ~1;
+        int slot;
+        if ((keys[i] ^ data[i]) == key) slot = i;
+        else if ((keys[i + 1] ^ data[i + 1]) == key) slot = i + 1;
+        else slot = priority(i) <= priority(i + 1) ? i : i + 1;
+
+        long d = USED | ((long) age << 58) | ((long) bound << 56) | ((long) Math.min(depth, 255) << 48)
+                | ((long) move << 32) | (score & 0xFFFFFFFFL);
+        data[slot] = d;
+        keys[slot] = key ^ d;
+    }
+
+    /**
+     * Follows stored best moves from b with color to move, for as long as they
+     * are legal, and returns them separated by spaces.
+     */
+    public String principalVariation(Board b, byte color, int maxLength) {
+        StringBuilder s = new StringBuilder();
+        Board board = b.copy();
+        for (int i = 0; i < maxLength; i++) {
+            if (!board.canMove(color)) {
+                color ^= 3;
+                if (!board.canMove(color)) break;
+            }
+            // Entries near the leaves were stored under the plain key.
+            long entry = probe(board.symmetryKey(color, Integer.MAX_VALUE));
+            int symmetry = board.symmetry;
+            if (entry == 0 && symmetry != 0) {
+                entry = probe(board.hash ^ Zobrist.side(color));
+                symmetry = 0;
+            }
+            int move = Symmetry.fromCanonical(move(entry), symmetry, board.WIDTH);
+            if (move == 0 || !board.isValidMove(moveX(move), moveY(move), color)) break;
+            Position p = new Position(moveX(move), moveY(move));
+            if (i > 0) s.append(' ');
+            s.append(p);
+            board.moveOn(p, color);
+            color ^= 3;
+        }
+        return s.toString();
+    }
+
+    // Lower means more willing to be overwritten.
+    private int priority(int slot) {
+        long d = data[slot];
+        if (d == 0) return -1;
+        return depth(d) + (age(d) == age ? 256 : 0);
+    }
+
+    public static int score(long entry) {
+        return (int) entry;
+    }
+
+    public static int move(long entry) {
+        return (int) (entry >>> 32) & 0xFFFF;
+    }
+
+    public static int depth(long entry) {
+        return (int) (entry >>> 48) & 0xFF;
+    }
+
+    public static int bound(long entry) {
+        return (int) (entry >>> 56) & 3;
+    }
+
+    private static int age(long entry) {
+        return (int) (entry >>> 58) & 31;
+    }
+
+    // Moves are stored as (x << 5 | y) + 1 so that 0 means "no move".
+    public static int encodeMove(int x, int y) {
+        return (x << 5 | y) + 1;
+    }
+
+    public static int moveX(int move) {
+        return (move - 1) >>> 5;
+    }
+
+    public static int moveY(int move) {
+        return (move - 1) & 31;
+    }
+}
+
+class Position {
+    public int x;
+    public int y;
+
+    public Position(int a, int b) {
+        x = a;
+        y = b;
+    }
+
+    public Position(Position p) {
+        x = p.x;
+        y = p.y;
+    }
+
+    public Position(String move) {
+        x = move.charAt(0) - 'a';
+        y = Integer.parseInt(move.substring(1)) - 1;
+    }
+
+    public String toString() {
+        return (char) (x + 'a') + "" + (y + 1);
+    }
+}
+
+class Score {
+    public int dark;
+    public int light;
+
+    public Score(int d, int l) {
+        dark = d;
+        light = l;
+    }
+
+    public Score(Score s) {
+        dark = s.dark;
+        light = s.light;
+    }
+
+    public String toString() {
+        return "Light " + light + " - Dark " + dark;
+    }
+}
+
+class PositionWeightPair {
+    public Position pos;
+    public double weight;
+
+    public PositionWeightPair(Position p, double w) {
+        pos = p;
+        weight = w;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package reversi;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The Board operations the searches spend their time in, over every recorded
+ * position of a size. Scores are per position. The bit engine only exists at
+ * 8x8; Board.create gives the packed board for the larger sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoardBenchmark {
+    @Param({"8", "12", "16"})
+    public int size;
+
+    @Param({"array", "bit", "packed"})
+    public String engine;
+
+    private Board[] boards;
+    private byte[] colors;
+    private int[] firstMoves;
+    private int[] moveList;
+
+    @Setup
+    public void setup() throws IOException {
+        RecordedPositions positions = RecordedPositions.load(size, Board.parseEngine(engine));
+        boards = positions.boards;
+        colors = positions.colors;
+        moveList = new int[size * size];
+        firstMoves = new int[boards.length];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i].generateMoves(colors[i], moveList);
+            firstMoves[i] = moveList[0];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void possibleMoves(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) bh.consume(boards[i].possibleMoves(colors[i]));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void generateMoves(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) bh.consume(boards[i].generateMoves(colors[i], moveList));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void canMove(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) bh.consume(boards[i].canMove((byte) (colors[i] ^ 3)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void getWeightFor(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) bh.consume(boards[i].getWeightFor(colors[i]));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void copy(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) bh.consume(boards[i].copy());
+    }
+
+    // moveOn changes the board, so it is measured on a fresh copy; subtract copy for moveOn alone.
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void copyAndMoveOn(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) {
+            Board b = boards[i].copy();
+            b.moveOn(firstMoves[i] / size, firstMoves[i] % size, colors[i]);
+            bh.consume(b);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public void makeAndUndoMove(Blackhole bh) {
+        for (int i = 0; i < boards.length; i++) {
+            boards[i].makeMove(firstMoves[i], colors[i]);
+            bh.consume(boards[i].hash);
+            boards[i].undoMove();
+        }
+    }
+}
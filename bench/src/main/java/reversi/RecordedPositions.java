@@ -0,0 +1,57 @@
+package reversi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Mid-game positions from engine games, stored in positions.txt as the board
+ * size followed by the moves that lead to them. Passes are not written down:
+ * a side that cannot move is skipped while the moves are replayed.
+ */
+final class RecordedPositions {
+    public static final int PER_SIZE = 8;
+
+    public final Board[] boards;
+    public final byte[] colors;
+
+    private RecordedPositions(Board[] boards, byte[] colors) {
+        this.boards = boards;
+        this.colors = colors;
+    }
+
+    public static RecordedPositions load(int size, byte engine) throws IOException {
+        ArrayList<Board> boards = new ArrayList<Board>();
+        ArrayList<Byte> colors = new ArrayList<Byte>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                RecordedPositions.class.getResourceAsStream("/positions.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] moves = line.trim().split("\\s+");
+                if (moves.length < 2 || Integer.parseInt(moves[0]) != size) continue;
+
+                Board b = Board.create(size, engine);
+                byte color = Board.DARK;
+                for (int i = 1; i < moves.length; i++) {
+                    if (!b.canMove(color)) color ^= 3;
+                    Position p = new Position(moves[i]);
+                    if (!b.isValidMove(p.x, p.y, color)) throw new IOException("Illegal move " + p + " in: " + line);
+                    b.moveOn(p, color);
+                    color ^= 3;
+                }
+                if (!b.canMove(color)) color ^= 3;
+                boards.add(b);
+                colors.add(color);
+            }
+        }
+        if (boards.size() != PER_SIZE) {
+            throw new IOException("Expected " + PER_SIZE + " positions for size " + size + ", found " + boards.size());
+        }
+
+        byte[] c = new byte[colors.size()];
+        for (int i = 0; i < c.length; i++) c[i] = colors.get(i);
+        return new RecordedPositions(boards.toArray(new Board[0]), c);
+    }
+}
@@ -0,0 +1,66 @@
+package reversi;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fixed-depth PlayTree.search from each recorded position, clearing the tree
+ * every time and without a transposition table, so that one invocation does
+ * not make the next cheaper. There is a tree per colour since a tree searches
+ * for one side.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeSearchBenchmark {
+    @Param({"8", "12", "16"})
+    public int size;
+
+    @Param({"array", "bit", "packed"})
+    public String engine;
+
+    @Param({"3"})
+    public int depth;
+
+    private Board[] boards;
+    private byte[] colors;
+    private PlayTree[] trees;
+
+    @Setup
+    public void setup() throws IOException {
+        RecordedPositions positions = RecordedPositions.load(size, Board.parseEngine(engine));
+        boards = positions.boards;
+        colors = positions.colors;
+        trees = new PlayTree[3];
+        for (byte color = 1; color <= 2; color++)
+            trees[color] = new PlayTree(boards[0], PlayTree.MAX_NODE, color, null, null, true, 16L << 20);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RecordedPositions.PER_SIZE)
+    public int calcForDepth() {
+        int sum = 0;
+        for (int i = 0; i < boards.length; i++) {
+            PlayTree tree = trees[colors[i]];
+            tree.clear(boards[i], PlayTree.MAX_NODE);
+            sum += tree.search(depth, -Searcher.INFINITY, Searcher.INFINITY);
+        }
+        return sum;
+    }
+}